@@ -0,0 +1,168 @@
+package udc.rigrado;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Top k neighbours of every document by cosine similarity. The vectors are normalized and turned into
+ * an in-memory inverted index, so each document only meets the documents it shares a term with, and
+ * the documents are split into blocks that the pool computes in parallel.
+ * <p>
+ * The neighbour file is big endian: the magic {@link #MAGIC}, the version, the number of documents
+ * and k, followed for every document by its docID, the number of neighbours and that many
+ * (docID, similarity) pairs, from most to least similar.
+ */
+class AllPairsSimilarity {
+
+    static final int MAGIC = 0x53494D4E;
+    static final int VERSION = 1;
+    private static final int BLOCK_SIZE = 256;
+
+    private final int[] docIDs;
+    private final SparseVector[] vectors;
+    private final int k;
+    // Índice invertido en memoria: los postings del ordinal t están en [postingsStart[t], postingsStart[t+1])
+    private final int[] postingsStart;
+    private final int[] postingsDocs;
+    private final float[] postingsValues;
+    private final int[][] neighbours;
+    private final float[][] similarities;
+    private final ThreadLocal<Scratch> scratch;
+
+    // Acumuladores de cada hilo, del tamaño de la colección
+    private static class Scratch {
+        final float[] scores;
+        final int[] marks;
+        final int[] touched;
+        final TopK best;
+
+        Scratch(int numDocs, int k) {
+            scores = new float[numDocs];
+            marks = new int[numDocs];
+            touched = new int[numDocs];
+            best = new TopK(k, true);
+        }
+    }
+
+    /**
+     * @param docIDs  docID of each vector
+     * @param vectors vectors of the documents, over a vocabulary of numTerms ordinals
+     */
+    AllPairsSimilarity(int[] docIDs, SparseVector[] vectors, int numTerms, int k) {
+        int numDocs = vectors.length;
+        this.docIDs = docIDs;
+        this.vectors = new SparseVector[numDocs];
+        this.k = k;
+        this.neighbours = new int[numDocs][];
+        this.similarities = new float[numDocs][];
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(numDocs, k));
+
+        this.postingsStart = new int[numTerms + 1];
+        for (int i = 0; i < numDocs; i++) {
+            this.vectors[i] = vectors[i].normalized();
+            for (int ord : this.vectors[i].ords)
+                postingsStart[ord + 1]++;
+        }
+        for (int t = 0; t < numTerms; t++)
+            postingsStart[t + 1] += postingsStart[t];
+        this.postingsDocs = new int[postingsStart[numTerms]];
+        this.postingsValues = new float[postingsStart[numTerms]];
+        int[] next = new int[numTerms];
+        System.arraycopy(postingsStart, 0, next, 0, numTerms);
+        for (int i = 0; i < numDocs; i++) {
+            SparseVector vector = this.vectors[i];
+            for (int j = 0; j < vector.ords.length; j++) {
+                int p = next[vector.ords[j]]++;
+                postingsDocs[p] = i;
+                postingsValues[p] = vector.values[j];
+            }
+        }
+    }
+
+    private class Block extends RecursiveAction {
+        private final int from;
+        private final int to;
+
+        Block(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BLOCK_SIZE) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Block(from, mid), new Block(mid, to));
+            } else {
+                Scratch s = scratch.get();
+                for (int i = from; i < to; i++)
+                    computeDoc(i, s);
+            }
+        }
+    }
+
+    void compute(ForkJoinPool pool) {
+        pool.invoke(new Block(0, vectors.length));
+    }
+
+    private void computeDoc(int i, Scratch s) {
+        SparseVector vector = vectors[i];
+        int numTouched = 0;
+        // Las marcas evitan limpiar los acumuladores enteros entre documentos
+        int mark = i + 1;
+        for (int j = 0; j < vector.ords.length; j++) {
+            int ord = vector.ords[j];
+            float value = vector.values[j];
+            for (int p = postingsStart[ord]; p < postingsStart[ord + 1]; p++) {
+                int other = postingsDocs[p];
+                if (other == i)
+                    continue;
+                if (s.marks[other] != mark) {
+                    s.marks[other] = mark;
+                    s.scores[other] = 0;
+                    s.touched[numTouched++] = other;
+                }
+                s.scores[other] += value * postingsValues[p];
+            }
+        }
+
+        // Los k mejores; a igual similaridad gana el documento anterior
+        TopK best = s.best;
+        best.clear();
+        for (int t = 0; t < numTouched; t++) {
+            int other = s.touched[t];
+            best.offer(s.scores[other], other);
+        }
+        best.sort();
+        int[] docs = new int[best.size()];
+        float[] scores = new float[best.size()];
+        for (int n = 0; n < docs.length; n++) {
+            docs[n] = (int) best.ord(n);
+            scores[n] = (float) best.score(n);
+        }
+        neighbours[i] = docs;
+        similarities[i] = scores;
+    }
+
+    void write(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(vectors.length);
+            out.writeInt(k);
+            for (int i = 0; i < vectors.length; i++) {
+                out.writeInt(docIDs[i]);
+                out.writeInt(neighbours[i].length);
+                for (int n = 0; n < neighbours[i].length; n++) {
+                    out.writeInt(docIDs[neighbours[i][n]]);
+                    out.writeFloat(similarities[i][n]);
+                }
+            }
+        }
+    }
+}
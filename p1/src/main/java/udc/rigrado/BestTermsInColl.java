@@ -2,21 +2,32 @@ package udc.rigrado;
 
 import org.apache.lucene.index.*;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class BestTermsInColl {
 
+    // Rangos de términos por hilo, para repartir mejor los que tienen muchos más términos que otros
+    private static final int RANGES_PER_THREAD = 8;
+
     public static void main(String[] args) throws IOException {
         String usage = "java BestTermsInColl"
                 + " [-index INDEX_PATH] [-field FIELD_NAME]"
-                + " [-top N] [-rev]\n";
+                + " [-top N] [-rev] [-threads T]\n"
+                + "The terms are read by -threads threads, each one over a range of the terms of the field.\n";
         String indexPath = null;
         String field = null;
         boolean rev = false;
         int top = -1;
+        int threads = Runtime.getRuntime().availableProcessors();
 
         try {
             for (int i = 0; i < args.length; i++) {
@@ -33,6 +44,9 @@ public class BestTermsInColl {
                     case "-rev":
                         rev = true;
                         break;
+                    case "-threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
                     default:
                         throw new IllegalArgumentException("Unknown parameter " + args[i]);
                 }
@@ -48,6 +62,11 @@ public class BestTermsInColl {
             System.exit(1);
         }
 
+        if (threads <= 0) {
+            System.err.println("Threads number must be a non-zero positive integer.");
+            System.exit(1);
+        }
+
         if (field == null) {
             System.err.println("A field must be specified");
             System.exit(1);
@@ -66,8 +85,8 @@ public class BestTermsInColl {
             e.printStackTrace();
             System.exit(-1);
         }
-        // Se obtiene la lista de termino de la colección ya ordenada
-        ArrayList<TermInfo> topTerms = getTopTerms(reader, field, rev);
+        // Se obtienen los N mejores términos de la colección ya ordenados
+        TopTerms topTerms = getTopTerms(reader, field, rev, top, threads);
         String stats = "Best terms in Collection for field '" + field + "' sorted by ";
         if (rev)
             stats += "DF:";
@@ -75,110 +94,199 @@ public class BestTermsInColl {
             stats += "IDFLOG10:";
 
         System.out.println(stats);
-        TermInfo ti = null;
-        // Se itera sobre los top N terminos de la lista de terminos
+        double totalDocs = reader.numDocs();
+        // Se itera sobre los top N terminos
         for (int i = 0; i < top; i++) {
-            try {
-                ti = topTerms.get(i);
-                stats = "\nNº "  + (i + 1) + ":\n\t";
-                stats += ti.term + " (" + ti.getValue() + ")";
-                System.out.print(stats);
-            } catch (IndexOutOfBoundsException e) {
+            if (i == topTerms.size()) {
                 System.out.println("\nNo more terms available for this collection");
                 break;
             }
+            int df = topTerms.docFreq(i);
+            Number value = rev ? (Number) df : (Number) Math.log10(totalDocs / (double) df);
+            stats = "\nNº "  + (i + 1) + ":\n\t";
+            stats += topTerms.term(i).utf8ToString() + " (" + value + ")";
+            System.out.print(stats);
         }
     }
 
-    private static class TermInfo implements Comparable<TermInfo> {
-        final String term;
-        Double idf = null;
-        Integer df = null;
+    /**
+     * Best terms seen so far: by DF from highest to lowest with -rev, and from lowest to highest
+     * otherwise, which is the order of their IDF from highest to lowest. Equal DFs go in term order, as
+     * the ordinal of each term is its position in the field. The terms are only copied when they are
+     * selected, into the slot given to them.
+     */
+    private static class TopTerms {
+        final TopK top;
+        // Crecen según se llenan, un -top muy grande no reserva memoria que no se usa
+        BytesRefBuilder[] terms = new BytesRefBuilder[0];
 
-        public TermInfo(String term, double idf) {
-            this.term = term;
-            this.idf = idf;
+        TopTerms(int maxSize, boolean highestFirst) {
+            this.top = new TopK(maxSize, highestFirst);
         }
-        public TermInfo(String term, int df) {
-            this.term = term;
-            this.df = df;
+
+        void offer(int docFreq, long ord, BytesRef term) {
+            int slot = top.offer(docFreq, ord);
+            if (slot < 0)
+                return;
+            if (slot >= terms.length)
+                terms = ArrayUtil.grow(terms, slot + 1);
+            if (terms[slot] == null)
+                terms[slot] = new BytesRefBuilder();
+            terms[slot].copyBytes(term);
         }
 
-        @Override
-        public int compareTo(TermInfo o) {
-            if (this.df == null)
-                return Double.compare(o.idf, this.idf);
-            else
-                return Integer.compare(o.df, this.df);
+        int size() {
+            return top.size();
         }
 
-        public Number getValue() {
-            if (this.df == null)
-                return this.idf;
-            else
-                return this.df;
+        /** DF of the i-th best term, once sorted */
+        int docFreq(int i) {
+            return (int) top.score(i);
+        }
+
+        /** The i-th best term, once sorted */
+        BytesRef term(int i) {
+            return terms[top.slot(i)].get();
+        }
+    }
+
+    /**
+     * Adds up the DF of the terms in [from, to) over all the leaves, walking their terms enums side by
+     * side, and keeps the best ones. A null bound means the beginning or the end of the field.
+     */
+    private static class TermRange extends RecursiveTask<TopTerms> {
+        private final IndexReader reader;
+        private final String field;
+        private final BytesRef from;
+        private final BytesRef to;
+        // Va en la parte alta de los ordinales, para que sigan el orden de los términos entre rangos
+        private final int index;
+        private final int top;
+        private final boolean rev;
+
+        TermRange(IndexReader reader, String field, int index, BytesRef from, BytesRef to, int top, boolean rev) {
+            this.reader = reader;
+            this.field = field;
+            this.index = index;
+            this.from = from;
+            this.to = to;
+            this.top = top;
+            this.rev = rev;
         }
 
         @Override
-        public boolean equals(Object obj) {
-            if (this.getClass() != obj.getClass())
-                return false;
-            TermInfo o = (TermInfo) obj;
-            if (this.getValue() == null || o.getValue() == null)
-                return false;
-            else
-                return Objects.equals(this.getValue(), o.getValue());
+        protected TopTerms compute() {
+            try {
+                return collect();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private TopTerms collect() throws IOException {
+            TopTerms topTerms = new TopTerms(top, rev);
+            List<LeafReaderContext> leaves = reader.leaves();
+            TermsEnum[] enums = new TermsEnum[leaves.size()];
+            BytesRef[] current = new BytesRef[leaves.size()];
+            for (int l = 0; l < enums.length; l++) {
+                Terms terms = leaves.get(l).reader().terms(field);
+                if (terms == null)
+                    continue;
+                enums[l] = terms.iterator();
+                if (from == null)
+                    current[l] = bounded(enums[l].next());
+                else if (enums[l].seekCeil(from) != TermsEnum.SeekStatus.END)
+                    current[l] = bounded(enums[l].term());
+            }
+
+            long ord = (long) index << 32;
+            while (true) {
+                // El menor término actual de todos los leafs, con la suma de sus DF
+                BytesRef term = null;
+                for (BytesRef leafTerm : current)
+                    if (leafTerm != null && (term == null || leafTerm.compareTo(term) < 0))
+                        term = leafTerm;
+                if (term == null)
+                    break;
+                int df = 0;
+                for (int l = 0; l < enums.length; l++)
+                    if (current[l] != null && current[l].bytesEquals(term))
+                        df += enums[l].docFreq();
+                topTerms.offer(df, ord++, term);
+
+                // Se avanzan después de usar el término, que pertenece a uno de los enums
+                for (int l = 0; l < enums.length; l++)
+                    if (current[l] != null && current[l].bytesEquals(term) && current[l] != term)
+                        current[l] = bounded(enums[l].next());
+                for (int l = 0; l < enums.length; l++)
+                    if (current[l] == term)
+                        current[l] = bounded(enums[l].next());
+            }
+            topTerms.top.sort();
+            return topTerms;
+        }
+
+        private BytesRef bounded(BytesRef term) {
+            return term == null || (to != null && term.compareTo(to) >= 0) ? null : term;
         }
     }
 
-    private static HashMap<String, Integer> getDfOfTermsInColl(IndexReader reader, String fieldName) throws IOException {
-        // Se obtiene lista de Leafs de la coleccion
-        List<LeafReaderContext> leafList = reader.leaves();
-        HashMap<String, Integer> map = new HashMap<>();
-        Integer tmpDf = null;
-
-        // Itera sobre los leafs del reader para recoger todos los términos de todos los documentos de la colección
-        // Es más eficiente que iterar sobre la lista de terminos de cada documento en la colección
-        for (LeafReaderContext leaf : leafList) {
-            // Se obtiene terminos del leaf
-            Terms terms = leaf.reader().terms(fieldName);
-            if (terms != null) {
-                TermsEnum te = terms.iterator();
-                // Se itera sobre los terminos
-                while (te.next() != null) {
-                    if ((tmpDf = map.get(te.term().utf8ToString())) == null) {
-                        // Si el valor no existía en el hashmap, se añade
-                        map.put(te.term().utf8ToString(), te.docFreq());
-                    } else {
-                        // Si el valor existía previamente, se suman las frecuencias
-                        map.put(te.term().utf8ToString(), tmpDf + te.docFreq());
-                    }
-                }
+    /**
+     * Splits the field into term ranges from the first two bytes of its smallest and largest terms, so
+     * there are several ranges per thread to balance a skewed distribution of terms.
+     */
+    private static List<BytesRef> rangeBounds(Terms terms, int numRanges) throws IOException {
+        int lo = prefix(terms.getMin());
+        int hi = prefix(terms.getMax()) + 1;
+        List<BytesRef> bounds = new ArrayList<>();
+        int previous = lo;
+        for (int i = 1; i < numRanges; i++) {
+            int bound = lo + (int) ((long) (hi - lo) * i / numRanges);
+            if (bound > previous) {
+                bounds.add(new BytesRef(new byte[] {(byte) (bound >>> 8), (byte) bound}));
+                previous = bound;
             }
         }
-        if (map.size() == 0) {
+        return bounds;
+    }
+
+    private static int prefix(BytesRef term) {
+        int first = term.length > 0 ? term.bytes[term.offset] & 0xff : 0;
+        int second = term.length > 1 ? term.bytes[term.offset + 1] & 0xff : 0;
+        return first << 8 | second;
+    }
+
+    private static TopTerms getTopTerms(IndexReader reader, String strField, boolean rev, int top, int threads)
+            throws IOException {
+        Terms terms = MultiTerms.getTerms(reader, strField);
+        if (terms == null) {
             System.err.println("The field has no term vector");
             System.exit(-1);
         }
-        return map;
-    }
-
-    private static ArrayList<TermInfo> getTopTerms(IndexReader reader, String strField, boolean rev) throws IOException {
-        ArrayList<TermInfo> freqs = new ArrayList<>();
-        HashMap<String, Integer> map = getDfOfTermsInColl(reader, strField);
 
+        List<BytesRef> bounds = rangeBounds(terms, threads * RANGES_PER_THREAD);
+        List<TermRange> ranges = new ArrayList<>();
+        for (int i = 0; i <= bounds.size(); i++)
+            ranges.add(new TermRange(reader, strField, i, i == 0 ? null : bounds.get(i - 1),
+                    i == bounds.size() ? null : bounds.get(i), top, rev));
 
-        // Añade cada elemento de hashmap a la lista para que se pueda ordenar
-        if (rev) {
-            // Si se pide rev, solo se añade la frecuencia de documento del termino
-            map.forEach((k, v) -> freqs.add(new TermInfo(k, v)));
-        } else {
-            // Si no, se calcula el idflog10 del termino
-            double totalDocs = reader.numDocs();
-            map.forEach((k, v) -> freqs.add(new TermInfo(k, Math.log10(totalDocs / (double) v))));
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        TopTerms topTerms = new TopTerms(top, rev);
+        try {
+            for (TermRange range : ranges)
+                pool.execute(range);
+            // Cada rango conserva sus ordinales, así que el resultado no depende del orden en que se juntan
+            for (TermRange range : ranges) {
+                TopTerms rangeTerms = range.join();
+                for (int i = 0; i < rangeTerms.size(); i++)
+                    topTerms.offer(rangeTerms.docFreq(i), rangeTerms.top.ord(i), rangeTerms.term(i));
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
         }
-        // Ordena la lista de frecuencias
-        Collections.sort(freqs);
-        return freqs;
+        topTerms.top.sort();
+        return topTerms;
     }
 }
@@ -2,6 +2,7 @@ package udc.rigrado;
 
 import org.apache.lucene.index.*;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.IOUtils;
 
@@ -9,7 +10,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.List;
 
 public class BestTermsInDoc implements AutoCloseable {
 
@@ -110,8 +111,8 @@ public class BestTermsInDoc implements AutoCloseable {
             System.exit(-1);
         }
 
-        // Genera la lista de términos ya ordenada
-        ArrayList<TermInfo> sortedTerms = getTermInfo(reader, field, order);
+        // Genera la lista de los mejores términos ya ordenada
+        List<TermInfo> sortedTerms = getTermInfo(reader, field, order);
 
         // Crea la variable en  la que se va a guardar cada línea de print o escritura
         String stats = "Best terms in Document " + docID + " for field '" + field + "' sorted by " + order.name() + ":";
@@ -146,41 +147,39 @@ public class BestTermsInDoc implements AutoCloseable {
         }
     }
 
-    private static class TermInfo implements Comparable<TermInfo> {
+    private static class TermInfo {
         final String term;
         final float df;
         final float tf;
         final double idf;
         final double tfxidf;
-        final Order order;
 
-        public TermInfo(String term, float df, float tf, double idf, Order order) {
+        public TermInfo(String term, float df, float tf, double idf) {
             this.term = term;
             this.df = df;
             this.tf = tf;
             this.idf = idf;
             this.tfxidf = tf * idf;
-            this.order = order;
         }
+    }
 
-        @Override
-        public int compareTo(TermInfo o) {
-            switch (o.order) {
-                case DF:
-                    return Float.compare(o.df, this.df);
-                case TF:
-                    return Float.compare(o.tf, this.tf);
-                case IDF:
-                    return Double.compare(o.idf, this.idf);
-                case TFXIDF:
-                    return Double.compare(o.tfxidf, this.tfxidf);
-                default:
-                    throw new IllegalArgumentException("-order option not recognized, must be [df | tf | idf | tfxidf]");
-            }
+    // Valor por el que se ordenan los términos, de mayor a menor
+    private static double score(Order order, float df, float tf, double idf) {
+        switch (order) {
+            case DF:
+                return df;
+            case TF:
+                return tf;
+            case IDF:
+                return idf;
+            case TFXIDF:
+                return tf * idf;
+            default:
+                throw new IllegalArgumentException("-order option not recognized, must be [df | tf | idf | tfxidf]");
         }
     }
 
-    private ArrayList<TermInfo> getTermInfo(IndexReader reader, String strField, Order order) throws IOException {
+    private List<TermInfo> getTermInfo(IndexReader reader, String strField, Order order) throws IOException {
         // Obtiene el term vector del documento y el campo
         TermsEnum termVectors = reader.getTermVector(docID, strField).iterator();
         if (termVectors == null) {
@@ -188,29 +187,50 @@ public class BestTermsInDoc implements AutoCloseable {
             System.exit(-1);
         }
         PostingsEnum docEnums = null;
-        ArrayList<TermInfo> freqs = new ArrayList<>();
+        // Solo se guardan los top mejores; a igual valor, el primero en el term vector
+        TopK best = new TopK(top, true);
+        TermInfo[] selected = new TermInfo[0];
         BytesRef term;
+        int position = 0;
+        // Ordenando por tf no hace falta buscar cada término en el índice, solo los que se muestran
+        boolean needsDf = order != Order.TF;
 
-        // Itera sobre el term vector, calculando y almacenando df, tf e idf para cada uno
+        // Itera sobre el term vector, calculando df, tf e idf para cada uno
         while ((term = termVectors.next()) != null) {
-            Term tmpterm = new Term(strField, termVectors.term());
             docEnums = termVectors.postings(docEnums, PostingsEnum.FREQS);
             // Avanza una posicion del posting para llegar al documento que se está analizando
             docEnums.nextDoc();
             // Se obtiene document frequency
-            float df = reader.docFreq(tmpterm);
+            float df = needsDf ? reader.docFreq(new Term(strField, term)) : 0;
             // Frecuencia de término para ese documento
             float tf = docEnums.freq();
-            // idflog10 (inversa de frecuencia de documento log 10)
-            double idf = Math.log10((double) reader.numDocs() / (double) df);
-            // Se añade toda la estructura a la lista de frecuencias
-            freqs.add(new TermInfo(term.utf8ToString(), df, tf, idf, order));
+            double idf = needsDf ? idf(reader, df) : 0;
+            // Solo se crea el TermInfo de los que entran entre los mejores
+            int slot = best.offer(score(order, df, tf, idf), position++);
+            if (slot >= 0) {
+                if (slot >= selected.length)
+                    selected = ArrayUtil.grow(selected, slot + 1);
+                selected[slot] = new TermInfo(term.utf8ToString(), df, tf, idf);
+            }
+        }
+        best.sort();
+        List<TermInfo> freqs = new ArrayList<>(best.size());
+        for (int i = 0; i < best.size(); i++) {
+            TermInfo info = selected[best.slot(i)];
+            if (!needsDf) {
+                float df = reader.docFreq(new Term(strField, info.term));
+                info = new TermInfo(info.term, df, info.tf, idf(reader, df));
+            }
+            freqs.add(info);
         }
-        // Se ordena la lista
-        Collections.sort(freqs);
         return freqs;
     }
 
+    // idflog10 (inversa de frecuencia de documento log 10)
+    private static double idf(IndexReader reader, float df) {
+        return Math.log10((double) reader.numDocs() / (double) df);
+    }
+
     private String getStats(TermInfo termInfo) {
         return "term '" + termInfo.term + "'"
             + "\t TF= " + termInfo.tf
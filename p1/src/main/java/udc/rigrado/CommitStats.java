@@ -0,0 +1,141 @@
+package udc.rigrado;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collection statistics of every indexed field, kept in the user data of a commit so StatsField can
+ * print them without reading the index. They are read from a commit, together with its maxDoc, numDocs
+ * and segments, and written by a second commit that only changes the user data. A reader of a commit
+ * can then tell whether they still describe it: the writer keeps the same user data for later commits
+ * until it is recorded again, and a merge that ends between the two commits also changes the segments.
+ * <p>
+ * Each field is stored under {@code stats.FIELD} as {@code docCount,sumDocFreq,sumTotalTermFreq}, the
+ * document counts under {@code stats} as {@code maxDoc,numDocs}, and the segments under
+ * {@code statsSegments} as {@code name:maxDoc:numDocs} for each one, separated by ';'.
+ */
+class CommitStats {
+
+    private static final String DOCS_KEY = "stats";
+    private static final String FIELD_PREFIX = "stats.";
+    private static final String SEGMENTS_KEY = "statsSegments";
+
+    /**
+     * Stores the statistics of the last commit of a closed index, with a writer that cannot merge, so
+     * the commit with the statistics always has the segments they were taken from
+     */
+    static void store(Directory dir) throws IOException {
+        IndexWriterConfig iwc = new IndexWriterConfig().setOpenMode(IndexWriterConfig.OpenMode.APPEND)
+                .setMergePolicy(NoMergePolicy.INSTANCE);
+        try (IndexWriter writer = new IndexWriter(dir, iwc)) {
+            commit(writer);
+        }
+    }
+
+    /**
+     * Commits the writer, and then commits again with the statistics of that first commit as user data.
+     * If a merge of the writer ends in between, the statistics of this commit are not used.
+     */
+    static void commit(IndexWriter writer) throws IOException {
+        writer.commit();
+        Map<String, String> data = new HashMap<>();
+        // Se conservan los datos de otro origen que ya tuviera el commit
+        Iterable<Map.Entry<String, String>> previous = writer.getLiveCommitData();
+        if (previous != null)
+            for (Map.Entry<String, String> entry : previous)
+                if (!entry.getKey().equals(DOCS_KEY) && !entry.getKey().equals(SEGMENTS_KEY)
+                        && !entry.getKey().startsWith(FIELD_PREFIX))
+                    data.put(entry.getKey(), entry.getValue());
+
+        // Solo este writer puede hacer commits, así que el último es el que acaba de hacer
+        try (DirectoryReader reader = DirectoryReader.open(writer.getDirectory())) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            data.put(DOCS_KEY, reader.maxDoc() + "," + reader.numDocs());
+            data.put(SEGMENTS_KEY, segments(reader));
+            for (String field : indexedFields(reader)) {
+                CollectionStatistics stats = searcher.collectionStatistics(field);
+                if (stats != null)
+                    data.put(FIELD_PREFIX + field, stats.docCount() + "," + stats.sumDocFreq() + ","
+                            + stats.sumTotalTermFreq());
+            }
+        }
+        writer.setLiveCommitData(data.entrySet());
+        writer.commit();
+    }
+
+    // Nombre, maxDoc y documentos vivos de cada segmento, en el orden del reader
+    private static String segments(IndexReader reader) {
+        StringBuilder segments = new StringBuilder();
+        for (LeafReaderContext leaf : reader.leaves()) {
+            LeafReader leafReader = FilterLeafReader.unwrap(leaf.reader());
+            if (segments.length() > 0)
+                segments.append(';');
+            segments.append(leafReader instanceof SegmentReader ? ((SegmentReader) leafReader).getSegmentName() : "?")
+                    .append(':').append(leafReader.maxDoc()).append(':').append(leafReader.numDocs());
+        }
+        return segments.toString();
+    }
+
+    /** Sorted names of the fields with postings, from the field infos of the segments */
+    static List<String> indexedFields(IndexReader reader) {
+        List<String> fields = new ArrayList<>();
+        for (FieldInfo fieldInfo : FieldInfos.getMergedFieldInfos(reader))
+            if (fieldInfo.getIndexOptions() != IndexOptions.NONE)
+                fields.add(fieldInfo.name);
+        Collections.sort(fields);
+        return fields;
+    }
+
+    /**
+     * Statistics stored in the commit of the reader by field, in field order, or null if the commit has
+     * none or they were taken from other contents of the index
+     */
+    static Map<String, CollectionStatistics> read(DirectoryReader reader) throws IOException {
+        Map<String, String> data = reader.getIndexCommit().getUserData();
+        String docs = data.get(DOCS_KEY);
+        if (docs == null || !docs.equals(reader.maxDoc() + "," + reader.numDocs()))
+            return null;
+        // Los mismos números de documentos no bastan, tras borrar, añadir y fusionar pueden coincidir
+        if (!segments(reader).equals(data.get(SEGMENTS_KEY)))
+            return null;
+
+        Map<String, CollectionStatistics> stats = new TreeMap<>();
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            if (!entry.getKey().startsWith(FIELD_PREFIX))
+                continue;
+            String field = entry.getKey().substring(FIELD_PREFIX.length());
+            String[] values = entry.getValue().split(",");
+            if (values.length != 3)
+                return null;
+            try {
+                stats.put(field, new CollectionStatistics(field, reader.maxDoc(), Long.parseLong(values[0]),
+                        Long.parseLong(values[2]), Long.parseLong(values[1])));
+            } catch (IllegalArgumentException e) {
+                // Valores que no cuadran, como si no hubiera estadísticas
+                return null;
+            }
+        }
+        return stats;
+    }
+}
@@ -2,19 +2,21 @@ package udc.rigrado;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.index.*;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.IOUtils;
 
-import javax.print.Doc;
-
 public class DocClusters implements AutoCloseable{
 
     private enum RepEnum {
@@ -23,55 +25,45 @@ public class DocClusters implements AutoCloseable{
         TFXIDF()
     }
 
-    private final LinkedHashMap<String, Double> baseTermVector;
+    private final IdfTable idfTable;
     private final int comparingDocID;
-
-    public DocClusters(LinkedHashMap<String, Double> baseTermVector, int docID) {
-        this.baseTermVector = baseTermVector;
+    // Arrays reutilizados para leer el term vector de cada documento
+    private int[] ords = new int[16];
+    private float[] values = new float[16];
+    // Proyección opcional de los vectores a pocas dimensiones, y su caché en disco
+    private VectorProjection projection;
+    private ProjectionCache projectionCache;
+
+    public DocClusters(IdfTable idfTable, int docID) {
+        this.idfTable = idfTable;
         this.comparingDocID = docID;
     }
 
-    private static class DocInfo implements Comparable<DocClusters.DocInfo> {
+    private static class DocInfo {
         final int docID;
-        final String path;
         double similarity;
 
-        protected DocInfo(int docID, String path, double similarity) {
+        protected DocInfo(int docID, double similarity) {
             this.docID = docID;
-            this.path = path;
             this.similarity = similarity;
         }
-
-        @Override
-        public int compareTo(DocClusters.DocInfo o) {
-            return Double.compare(o.similarity, this.similarity);
-        }
-    }
-
-    public static Double cosineSimilarity(Vector<Double> vec1, Vector<Double> vec2) {
-        double dotProd = 0.0;
-        double sumSquare1 = 0.0;
-        double sumSquare2 = 0.0;
-        double v1;
-        double v2;
-        for (int i = 0; i < vec1.size(); i++) {
-            v1 = vec1.get(i);
-            v2 = vec2.get(i);
-            dotProd += v1 * v2;
-            sumSquare1 += Math.pow(v1, 2);
-            sumSquare2 += Math.pow(v2, 2);
-        }
-        double denom = (Math.sqrt(sumSquare1 * sumSquare2));
-        if (denom == 0) {
-            return null;
-        } else return dotProd / denom;
     }
 
     public static void main(String[] args) throws Exception{
         String usage = "java DocClusters"
                 + " [-index INDEX_PATH] [-field FIELD_NAME] [-doc D] "
-                + " [-top N] [-rep bin | tf | tfxidf] [-k NUM_CLUSTERS]\n"
-                + "N and D should be positive integers.\n";
+                + " [-top N] [-rep bin | tf | tfxidf] [-k NUM_CLUSTERS]"
+                + " [-maxIter I] [-tol T] [-seed S] [-threads T] [-project DIMENSIONS [-projectionCache FILE]]\n"
+                + "java DocClusters -all [-index INDEX_PATH] [-field FIELD_NAME] [-rep bin | tf | tfxidf]"
+                + " [-k NUM_CLUSTERS] [-batchSize B] [-maxIter I] [-tol T] [-seed S] [-clusterField FIELD]\n"
+                + " [-minDf MIN] [-maxDf MAX]\n"
+                + "N and D should be positive integers.\n"
+                + "With -all the whole collection is clustered by spherical k-means over mini-batches of B documents,\n"
+                + "-maxIter batches at most, and -clusterField stores the cluster of each document as a doc value.\n"
+                + "With -project the term vectors are hashed into DIMENSIONS dimensions before ranking and clustering\n"
+                + "them, and -projectionCache keeps the hashed vectors of the whole index in FILE for later runs.\n"
+                + "-minDf and -maxDf leave out of the vocabulary the terms found in less than MIN documents or in\n"
+                + "more than a MAX fraction of the documents.\n";
 
         String indexPath = null;
         int top = -1;
@@ -79,7 +71,17 @@ public class DocClusters implements AutoCloseable{
         int docID = -1;
         DocClusters.RepEnum rep = null;
         int k = -1;
-
+        int maxIterations = 100;
+        double tolerance = 1e-6;
+        long seed = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean all = false;
+        int batchSize = 1000;
+        String clusterField = null;
+        int projectDims = 0;
+        String projectionCache = null;
+        int minDf = 1;
+        double maxDf = 1.0;
 
         try {
             for (int i = 0; i < args.length; i++) {
@@ -102,6 +104,39 @@ public class DocClusters implements AutoCloseable{
                     case "-k":
                         k = Integer.parseInt(args[++i]);
                         break;
+                    case "-maxIter":
+                        maxIterations = Integer.parseInt(args[++i]);
+                        break;
+                    case "-tol":
+                        tolerance = Double.parseDouble(args[++i]);
+                        break;
+                    case "-seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    case "-threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "-all":
+                        all = true;
+                        break;
+                    case "-batchSize":
+                        batchSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "-clusterField":
+                        clusterField = args[++i];
+                        break;
+                    case "-project":
+                        projectDims = Integer.parseInt(args[++i]);
+                        break;
+                    case "-projectionCache":
+                        projectionCache = args[++i];
+                        break;
+                    case "-minDf":
+                        minDf = Integer.parseInt(args[++i]);
+                        break;
+                    case "-maxDf":
+                        maxDf = Double.parseDouble(args[++i]);
+                        break;
                     default:
                         throw new IllegalArgumentException("Unknown parameter " + args[i]);
                 }
@@ -112,7 +147,10 @@ public class DocClusters implements AutoCloseable{
             System.exit(1);
         }
 
-        if (k < 0 || top < 0 || docID < 0 || field == null || indexPath == null || rep == null) {
+        if (k < 0 || maxIterations < 0 || tolerance < 0 || threads <= 0 || field == null || indexPath == null || rep == null
+                || projectDims < 0 || (projectionCache != null && projectDims == 0)
+                || minDf < 1 || maxDf <= 0 || maxDf > 1
+                || (all ? k == 0 || batchSize <= 0 || projectDims > 0 : top < 0 || docID < 0)) {
             System.err.println("Usage: " + usage);
             System.exit(1);
         }
@@ -125,69 +163,93 @@ public class DocClusters implements AutoCloseable{
             System.exit(-1);
         }
 
-        LinkedHashMap<String, Double> baseTerms = getTermsInColl(reader, field);
-
-        try (DocClusters dc = new DocClusters(baseTerms, docID)) {
-            LinkedHashMap<String, Double> map = dc.getTermValuesForDoc(reader, field, rep, dc.comparingDocID);
-            LinkedHashMap<String, Double> map2;
-            Vector<Double> docVector = new Vector<>(map.values());
-            Vector<Double> comparingVector;
-            List<DocClusters.DocInfo> similarityList = new ArrayList<>(reader.numDocs()-1);
-            DocClusters.DocInfo docInfo = new DocInfo(dc.comparingDocID, reader.document(dc.comparingDocID).get("path"), 1);
-
-            List<Punto> puntos = new ArrayList<>(reader.numDocs()-1);
-            Double[] data = docVector.toArray(new Double[0]);
-            Punto punto1 = new Punto(data, String.valueOf(dc.comparingDocID));
-            Double[] dataN;
-            Punto puntoN;
-            puntos.add(punto1);
+        IdfTable idfTable = getTermsInColl(reader, field, minDf, maxDf);
+
+        if (all) {
+            try (DocClusters dc = new DocClusters(idfTable, -1)) {
+                dc.clusterCollection(reader, indexPath, field, rep, k, batchSize, maxIterations, tolerance, seed, clusterField);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+
+        try (DocClusters dc = new DocClusters(idfTable, docID)) {
+            if (projectDims > 0)
+                dc.useProjection(reader, field, rep, projectDims, projectionCache == null ? null : Paths.get(projectionCache));
+            SparseVector docVector = dc.getTermValuesForDoc(reader, field, rep, dc.comparingDocID);
+            float[] docProjected = null;
+            float[] comparingProjected = null;
+            if (dc.projection != null) {
+                docProjected = dc.getProjectedValuesForDoc(reader, field, rep, dc.comparingDocID, new float[projectDims]);
+                comparingProjected = new float[projectDims];
+            }
+            // Solo se guardan los top más similares; a igual similaridad, primero el de menor docID
+            TopK best = new TopK(top, true);
+            Bits liveDocs = MultiBits.getLiveDocs(reader);
+
+            List<double[]> points = new ArrayList<>();
+            List<Integer> pointDocIDs = new ArrayList<>();
+            points.add(dc.toPoint(reader, field, rep, dc.comparingDocID));
+            pointDocIDs.add(dc.comparingDocID);
             // Itera sobre todos los documentos para obtener la similaridad con todos
-            for (int i = 0; i < reader.numDocs(); i++) {
-                System.out.print("\rComparing doc " + i + "/" + (reader.numDocs()-1) + "     ");
-                if (i != dc.comparingDocID) {
-                    map2 = dc.getTermValuesForDoc(reader, field, rep, i);
-                    comparingVector = new Vector<>(map2.values());
-                    Double similarity = cosineSimilarity(docVector, comparingVector);
-                    if (similarity != null) {
-                        similarityList.add(new DocInfo(i, reader.document(i).get("path"), similarity));
+            for (int i = 0; i < reader.maxDoc(); i++) {
+                if (i % 1000 == 0)
+                    System.out.print("\rComparing doc " + i + "/" + (reader.maxDoc()-1) + "     ");
+                if (i != dc.comparingDocID && (liveDocs == null || liveDocs.get(i))) {
+                    double similarity = dc.projection == null
+                            ? docVector.cosine(dc.getTermValuesForDoc(reader, field, rep, i))
+                            : VectorProjection.cosine(docProjected,
+                                    dc.getProjectedValuesForDoc(reader, field, rep, i, comparingProjected));
+                    if (!Double.isNaN(similarity)) {
+                        best.offer(similarity, i);
                     }
 
                 }
             }
             System.out.println();
-            if (similarityList.size() == 0) {
+            if (best.size() == 0) {
                 System.out.println("There are no other documents");
                 System.exit(0);
             }
-            // Ordenarla
-            Collections.sort(similarityList);
+            best.sort();
 
             DocClusters.DocInfo currentDoc;
-            String stats = "Doc ID: " + docInfo.docID + "\nPath: " + docInfo.path + "\n";
+            String stats = "Doc ID: " + dc.comparingDocID + "\nPath: " + reader.document(dc.comparingDocID).get("path") + "\n";
             stats += "Most similar documents in Collection for field '" + field + "' sorted by " + rep.name() + ":\n";
             System.out.println(stats);
             DecimalFormat df = new DecimalFormat();
             df.setMaximumFractionDigits(2);
 
             for (int i = 0; i < top; i++) {
-                try {
-                    currentDoc = similarityList.get(i);
-                    puntoN = new Punto(dc.getTermValuesForDoc(reader, field, rep, currentDoc.docID).values().toArray(new Double[0]), String.valueOf(currentDoc.docID));
-                    puntos.add(puntoN);
-                    printSimilarity(currentDoc, i, df);
-                } catch (IndexOutOfBoundsException e) {
+                if (i == best.size()) {
                     System.out.println("\nNo more documents available for this collection");
                     break;
                 }
+                currentDoc = new DocInfo((int) best.ord(i), best.score(i));
+                points.add(dc.toPoint(reader, field, rep, currentDoc.docID));
+                pointDocIDs.add(currentDoc.docID);
+                printSimilarity(currentDoc, reader.document(currentDoc.docID).get("path"), i, df);
             }
 
-            KMeans kMeans = new KMeans();
-            KMeansResultado resultado = kMeans.calcular(puntos, k);
-            List<Cluster> listClusters = resultado.getClusters();
-            for(int i = 0; i < listClusters.size();i++){
-                System.out.println("\nCluster " + (i+1) + ": ");
-                System.out.println(listClusters.get(i).toString());
+            KMeans kMeans = new KMeans(k, maxIterations, tolerance, seed);
+            KMeans.Result result;
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                result = kMeans.fit(points.toArray(new double[0][]), pool);
+            } finally {
+                pool.shutdown();
             }
+            for (int c = 0; c < result.centroids.length; c++) {
+                StringBuilder cluster = new StringBuilder();
+                for (int p = 0; p < result.assignments.length; p++)
+                    if (result.assignments[p] == c)
+                        cluster.append("\tDoc ID:").append(pointDocIDs.get(p)).append("\n");
+                System.out.println("\nCluster " + (c + 1) + ": ");
+                System.out.println(cluster);
+            }
+            System.out.println("K-means finished after " + result.iterations + " iterations, cost " + df.format(result.cost));
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -195,319 +257,208 @@ public class DocClusters implements AutoCloseable{
         }
     }
 
-    private static LinkedHashMap<String, Double> getTermsInColl(IndexReader reader, String fieldName) throws IOException {
-        // Se obtiene lista de Leafs de la coleccion
-        List<LeafReaderContext> leafList = reader.leaves();
-        LinkedHashMap<String, Double> list = new LinkedHashMap<>();
-
-        // Itera sobre los leafs del reader para recoger todos los términos de todos los documentos de la colección
-        // Es más eficiente que iterar sobre la lista de terminos de cada documento en la colección
-        for (LeafReaderContext leaf : leafList) {
-            // Se obtiene terminos del leaf
-            Terms terms = leaf.reader().terms(fieldName);
-            if (terms != null) {
-                TermsEnum te = terms.iterator();
-                // Se itera sobre los terminos
-                while (te.next() != null) {
-                    list.put(te.term().utf8ToString(), 0.0);
+    private void clusterCollection(IndexReader reader, String indexPath, String field, RepEnum rep, int k, int batchSize,
+                                   int maxIterations, double tolerance, long seed, String clusterField) throws IOException {
+        Bits liveDocs = MultiBits.getLiveDocs(reader);
+        int[] docIDs = new int[reader.numDocs()];
+        int numDocs = 0;
+        for (int i = 0; i < reader.maxDoc(); i++)
+            if (liveDocs == null || liveDocs.get(i))
+                docIDs[numDocs++] = i;
+
+        SphericalKMeans kMeans = new SphericalKMeans(k, idfTable.vocabulary.size(), batchSize, maxIterations, tolerance, seed);
+        // Los vectores se leen del term vector cada vez que se necesitan, en memoria solo queda el lote
+        SparseVector.Source source = doc -> getTermValuesForDoc(reader, field, rep, doc).normalized();
+        if (!kMeans.fit(docIDs, source)) {
+            System.err.println("There are less than " + k + " documents with terms in field '" + field + "'");
+            System.exit(1);
+        }
+        System.out.println("Trained on " + kMeans.iterations + " batches of up to " + batchSize + " documents");
+
+        long[] sizes = new long[k];
+        double[] similarities = new double[k];
+        Directory dir = null;
+        IndexWriter writer = null;
+        DirectoryReader writerReader = null;
+        try {
+            if (clusterField != null) {
+                FieldInfo fieldInfo = FieldInfos.getMergedFieldInfos(reader).fieldInfo(clusterField);
+                if (fieldInfo != null && fieldInfo.getDocValuesType() != DocValuesType.NUMERIC) {
+                    System.err.println("Field '" + clusterField + "' already exists and has no numeric doc values");
+                    System.exit(1);
+                }
+                dir = FSDirectory.open(Paths.get(indexPath));
+                writer = new IndexWriter(dir, new IndexWriterConfig().setOpenMode(IndexWriterConfig.OpenMode.APPEND));
+                // Se actualiza cada documento por su docID en un reader del propio writer, que debe tener los
+                // mismos segmentos que el que se ha agrupado
+                writerReader = DirectoryReader.open(writer);
+                if (!sameSegments(reader, writerReader)) {
+                    System.err.println("The index changed while clustering it");
+                    System.exit(1);
                 }
             }
+            IndexWriter clusterWriter = writer;
+            DirectoryReader clusterReader = writerReader;
+            kMeans.assign(docIDs, source, (doc, cluster, similarity) -> {
+                sizes[cluster]++;
+                similarities[cluster] += similarity;
+                if (clusterWriter != null
+                        && clusterWriter.tryUpdateDocValue(clusterReader, doc, new NumericDocValuesField(clusterField, cluster)) < 0)
+                    throw new IOException("The segment of document " + doc + " was merged while storing its cluster");
+            });
+            if (writer != null)
+                writer.commit();
+        } finally {
+            IOUtils.close(writerReader, writer, dir);
+        }
+
+        DecimalFormat df = new DecimalFormat();
+        df.setMaximumFractionDigits(2);
+        BytesRef scratch = new BytesRef();
+        for (int c = 0; c < k; c++) {
+            String stats = "\nCluster " + (c + 1) + ":";
+            stats += "\n\tDocuments: " + sizes[c];
+            stats += "\n\tMean similarity: " + (sizes[c] == 0 ? "-" : df.format(similarities[c] / sizes[c] * 100) + "%");
+            stats += "\n\tTop terms:";
+            for (int ord : topOrds(kMeans.centroids[c], 10))
+                stats += " " + idfTable.vocabulary.term(ord, scratch).utf8ToString();
+            System.out.println(stats);
         }
-        if (list.size() == 0) {
+        if (clusterField != null)
+            System.out.println("\nCluster numbers (0 to " + (k - 1) + ") stored in doc values field '" + clusterField + "'");
+    }
+
+    // Mismos segmentos con el mismo tamaño, y por tanto los mismos docIDs
+    private static boolean sameSegments(IndexReader reader, IndexReader other) {
+        List<LeafReaderContext> leaves = reader.leaves();
+        List<LeafReaderContext> otherLeaves = other.leaves();
+        if (leaves.size() != otherLeaves.size())
+            return false;
+        for (int i = 0; i < leaves.size(); i++) {
+            LeafReader leaf = leaves.get(i).reader();
+            LeafReader otherLeaf = otherLeaves.get(i).reader();
+            if (!(leaf instanceof SegmentReader) || !(otherLeaf instanceof SegmentReader)
+                    || !((SegmentReader) leaf).getSegmentName().equals(((SegmentReader) otherLeaf).getSegmentName())
+                    || leaf.maxDoc() != otherLeaf.maxDoc())
+                return false;
+        }
+        return true;
+    }
+
+    // Ordinales con más peso en el centroide, de mayor a menor
+    private static int[] topOrds(float[] centroid, int n) {
+        TopK best = new TopK(n, true);
+        for (int ord = 0; ord < centroid.length; ord++)
+            if (centroid[ord] > 0)
+                best.offer(centroid[ord], ord);
+        best.sort();
+        int[] ords = new int[best.size()];
+        for (int i = 0; i < ords.length; i++)
+            ords[i] = (int) best.ord(i);
+        return ords;
+    }
+
+    private static IdfTable getTermsInColl(IndexReader reader, String fieldName, int minDf, double maxDf)
+            throws IOException {
+        // Recorre el diccionario de términos de toda la colección una sola vez, ya ordenado y con su IDF
+        int maxDocFreq = maxDf >= 1 ? Integer.MAX_VALUE : (int) (maxDf * reader.numDocs());
+        IdfTable idfTable = IdfTable.get(reader, fieldName, minDf, maxDocFreq);
+        if (idfTable.vocabulary.pruned > 0)
+            System.out.println("Vocabulary of " + idfTable.vocabulary.size() + " terms, " + idfTable.vocabulary.pruned
+                    + " left out by document frequency");
+        if (idfTable.vocabulary.size() == 0) {
             System.err.println("The field has no term vector");
             System.exit(-1);
         }
 
-        return list;
+        return idfTable;
     }
 
-    private LinkedHashMap<String, Double> getTermValuesForDoc(IndexReader reader, String strField, DocClusters.RepEnum mode, int docID) throws IOException {
+    private SparseVector getTermValuesForDoc(IndexReader reader, String strField, DocClusters.RepEnum mode, int docID) throws IOException {
         // Obtiene el term vector del documento y el campo
         Terms terms = reader.getTermVector(docID, strField);
-        LinkedHashMap<String, Double> values = new LinkedHashMap<>(baseTermVector);
         if (terms == null) {
-            return values;
+            return new SparseVector(ords, values, 0);
         }
         TermsEnum termVectors = terms.iterator();
         PostingsEnum docEnums = null;
         BytesRef term;
-        Double tmp = null;
+        float tmp = 0;
+        int size = 0;
 
+        // El term vector está ordenado igual que el vocabulario, así que los ordinales salen crecientes
         while ((term = termVectors.next()) != null) {
-            Term tmpterm = new Term(strField, termVectors.term());
+            int ord = idfTable.vocabulary.ord(term);
+            if (ord < 0)
+                continue;
             docEnums = termVectors.postings(docEnums, PostingsEnum.FREQS);
             // Avanza una posicion del posting para llegar al documento que se está analizando
             docEnums.nextDoc();
             switch (mode) {
                 case TF:
-                    tmp = (double) docEnums.freq();
+                    tmp = docEnums.freq();
                     break;
                 case TFXIDF:
-                    tmp = docEnums.freq() * Math.log10((double) reader.numDocs() / (double) reader.docFreq(tmpterm));
+                    tmp = (float) (docEnums.freq() * idfTable.idf(ord));
                     break;
                 case BIN:
-                    tmp = 1.0;
+                    tmp = 1;
                     break;
             }
-            // Se añade toda la estructura a la lista de frecuencias
-            values.put(term.utf8ToString(), tmp);
-        }
-        return values;
-    }
-
-    private static void printSimilarity(DocClusters.DocInfo currentDoc, int i, DecimalFormat df) {
-        String stats = "\nNº "  + (i + 1) + ":";
-        stats += "\n\tSimilarity: " + df.format(currentDoc.similarity*100)+"%";
-        stats += "\n\tDoc ID: " + currentDoc.docID;
-        stats += "\n\tPath: " + currentDoc.path + "\n";
-        System.out.println(stats);
-    }
-
-    @Override
-    public void close() throws Exception {
-        IOUtils.close();
-    }
-}
-
-//Estas clases de abajo pertenecen a https://github.com/xetorthio/kmeans/tree/master/src
-
-class Punto {
-    private Double[] data;
-    String name;
-
-    public Punto(String[] strings) {
-        super();
-        List<Double> puntos = new ArrayList<Double>();
-        for (String string : strings) {
-            puntos.add(Double.parseDouble(string));
-        }
-        this.data = puntos.toArray(new Double[strings.length]);
-    }
-
-    public Punto(Double[] data) {
-        this.data = data;
-    }
-
-    public Punto(Double[] data, String name) {
-        this.data = data; this.name =name;
-    }
-
-    public double get(int dimension) {
-        return data[dimension];
-    }
-
-    public int getGrado() {
-        return data.length;
-    }
-
-    @Override
-    public String toString() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(data[0]);
-        for (int i = 1; i < data.length; i++) {
-            sb.append(", ");
-            sb.append(data[i]);
-        }
-        return sb.toString();
-    }
-
-    public Double distanciaEuclideana(Punto destino) {
-        Double d = 0d;
-        for (int i = 0; i < data.length; i++) {
-            d += Math.pow(data[i] - destino.get(i), 2);
-        }
-        return Math.sqrt(d);
-    }
-
-    @Override
-    public boolean equals(Object obj) {
-        Punto other = (Punto) obj;
-        for (int i = 0; i < data.length; i++) {
-            if (data[i] != other.get(i)) {
-                return false;
+            if (size == ords.length) {
+                ords = ArrayUtil.grow(ords);
+                values = ArrayUtil.growExact(values, ords.length);
             }
+            ords[size] = ord;
+            values[size++] = tmp;
         }
-        return true;
-    }
-}
-
- class Cluster {
-    private List<Punto> puntos = new ArrayList<Punto>();
-    private Punto centroide;
-    private boolean termino = false;
-
-    public Punto getCentroide() {
-        return centroide;
+        return new SparseVector(ords, values, size);
     }
 
-    public void setCentroide(Punto centroide) {
-        this.centroide = centroide;
+    private void useProjection(IndexReader reader, String field, RepEnum rep, int dimensions, Path cacheFile)
+            throws IOException {
+        projection = new VectorProjection(idfTable.vocabulary, dimensions, VectorProjection.DEFAULT_SEED);
+        if (cacheFile != null)
+            projectionCache = ProjectionCache.open(cacheFile, reader,
+                    field + "/" + rep.name() + "/" + idfTable.vocabulary.minDocFreq + "/" + idfTable.vocabulary.maxDocFreq, projection,
+                    doc -> getTermValuesForDoc(reader, field, rep, doc));
     }
 
-    public List<Punto> getPuntos() {
-        return puntos;
+    private float[] getProjectedValuesForDoc(IndexReader reader, String field, RepEnum rep, int docID, float[] out)
+            throws IOException {
+        if (projectionCache != null)
+            return projectionCache.get(docID, out);
+        return projection.project(getTermValuesForDoc(reader, field, rep, docID), out);
     }
 
-    public boolean isTermino() {
-        return termino;
+    // Punto del k-means: el vector proyectado si lo hay, si no uno denso del tamaño del vocabulario
+    private double[] toPoint(IndexReader reader, String field, RepEnum rep, int docID) throws IOException {
+        if (projection == null)
+            return toDense(getTermValuesForDoc(reader, field, rep, docID));
+        float[] projected = getProjectedValuesForDoc(reader, field, rep, docID, new float[projection.dimensions]);
+        double[] point = new double[projected.length];
+        for (int d = 0; d < projected.length; d++)
+            point[d] = projected[d];
+        return point;
     }
 
-    public void setTermino(boolean termino) {
-        this.termino = termino;
+    private double[] toDense(SparseVector vector) {
+        double[] data = new double[idfTable.vocabulary.size()];
+        for (int i = 0; i < vector.size(); i++)
+            data[vector.ords[i]] = (double) vector.values[i];
+        return data;
     }
 
-    public void limpiarPuntos() {
-        puntos.clear();
+    private static void printSimilarity(DocClusters.DocInfo currentDoc, String path, int i, DecimalFormat df) {
+        String stats = "\nNº "  + (i + 1) + ":";
+        stats += "\n\tSimilarity: " + df.format(currentDoc.similarity*100)+"%";
+        stats += "\n\tDoc ID: " + currentDoc.docID;
+        stats += "\n\tPath: " + path + "\n";
+        System.out.println(stats);
     }
 
     @Override
-    public String toString() {
-        StringBuilder result = new StringBuilder();
-        for (Punto punto : puntos) {
-            result.append("\tDoc ID:" +punto.name + "\n");
-        }
-
-        return result.toString();
-    }
-}
-
-class KMeansResultado {
-    private List<Cluster> clusters = new ArrayList<Cluster>();
-    private Double ofv;
-
-    public KMeansResultado(List<Cluster> clusters, Double ofv) {
-        super();
-        this.ofv = ofv;
-        this.clusters = clusters;
-    }
-
-    public List<Cluster> getClusters() {
-        return clusters;
-    }
-
-    public Double getOfv() {
-        return ofv;
+    public void close() throws Exception {
+        IOUtils.close();
     }
 }
-
-class KMeans {
-    public KMeansResultado calcular(List<Punto> puntos, Integer k) {
-        List<Cluster> clusters = elegirCentroides(puntos, k);
-
-        while (!finalizo(clusters)) {
-            prepararClusters(clusters);
-            asignarPuntos(puntos, clusters);
-            recalcularCentroides(clusters);
-        }
-
-        Double ofv = calcularFuncionObjetivo(clusters);
-
-        return new KMeansResultado(clusters, ofv);
-    }
-
-    private void recalcularCentroides(List<Cluster> clusters) {
-        for (Cluster c : clusters) {
-            if (c.getPuntos().isEmpty()) {
-                c.setTermino(true);
-                continue;
-            }
-
-            Double[] d = new Double[c.getPuntos().get(0).getGrado()];
-            Arrays.fill(d, (double)0f);
-            for (Punto p : c.getPuntos()) {
-                for (int i = 0; i < p.getGrado(); i++) {
-                    d[i] += (p.get(i) / c.getPuntos().size());
-                }
-            }
-
-            Punto nuevoCentroide = new Punto(d);
-
-            if (nuevoCentroide.equals(c.getCentroide())) {
-                c.setTermino(true);
-            } else {
-                c.setCentroide(nuevoCentroide);
-            }
-        }
-    }
-
-    private void asignarPuntos(List<Punto> puntos, List<Cluster> clusters) {
-        for (Punto punto : puntos) {
-            Cluster masCercano = clusters.get(0);
-            Double distanciaMinima = Double.MAX_VALUE;
-            for (Cluster cluster : clusters) {
-                Double distancia = punto.distanciaEuclideana(cluster
-                        .getCentroide());
-                if (distanciaMinima > distancia) {
-                    distanciaMinima = distancia;
-                    masCercano = cluster;
-                }
-            }
-            masCercano.getPuntos().add(punto);
-        }
-    }
-
-    private void prepararClusters(List<Cluster> clusters) {
-        for (Cluster c : clusters) {
-            c.limpiarPuntos();
-        }
-    }
-
-    private Double calcularFuncionObjetivo(List<Cluster> clusters) {
-        Double ofv = 0d;
-
-        for (Cluster cluster : clusters) {
-            for (Punto punto : cluster.getPuntos()) {
-                ofv += punto.distanciaEuclideana(cluster.getCentroide());
-            }
-        }
-
-        return ofv;
-    }
-
-    private boolean finalizo(List<Cluster> clusters) {
-        for (Cluster cluster : clusters) {
-            if (!cluster.isTermino()) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-    private List<Cluster> elegirCentroides(List<Punto> puntos, Integer k) {
-        List<Cluster> centroides = new ArrayList<Cluster>();
-
-        List<Double> maximos = new ArrayList<Double>();
-        List<Double> minimos = new ArrayList<Double>();
-        // me fijo máximo y mínimo de cada dimensión
-
-        for (int i = 0; i < puntos.get(0).getGrado(); i++) {
-            Double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
-
-            for (Punto punto : puntos) {
-                min = min > punto.get(i) ? punto.get(i) : min;
-                max = max < punto.get(i) ? punto.get(i) : max;
-            }
-
-            maximos.add(max);
-            minimos.add(min);
-        }
-
-        Random random = new Random();
-
-        for (int i = 0; i < k; i++) {
-            Double[] data = new Double[puntos.get(0).getGrado()];
-            Arrays.fill(data, (double)0f);
-            for (int d = 0; d < puntos.get(0).getGrado(); d++) {
-                data[d] = random.nextFloat()
-                        * (maximos.get(d) - minimos.get(d)) + minimos.get(d);
-            }
-
-            Cluster c = new Cluster();
-            Punto centroide = new Punto(data);
-            c.setCentroide(centroide);
-            centroides.add(c);
-        }
-
-        return centroides;
-    }
-}
\ No newline at end of file
@@ -0,0 +1,125 @@
+package udc.rigrado;
+
+import org.apache.lucene.demo.knn.DemoEmbeddings;
+import org.apache.lucene.demo.knn.KnnVectorDict;
+import org.apache.lucene.index.VectorSimilarityFunction;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Dense vectors of the documents for the nearest neighbour search of SimilarDocs, computed like the
+ * knn demo of Lucene: the vectors of the tokens in a {@link KnnVectorDict} are added up and normalized
+ * to unit length, so they are compared by dot product. The dictionary reads its vectors through a
+ * single IndexInput, so every thread that computes embeddings opens its own copy.
+ * <p>
+ * The dictionary is kept in the index directory with the path, size and modification time of its
+ * source, so later runs over the same index reuse it while the source does not change.
+ */
+class DocEmbeddings implements Closeable {
+
+    static final String FIELD = "contents-vector";
+    static final VectorSimilarityFunction SIMILARITY = VectorSimilarityFunction.DOT_PRODUCT;
+    private static final String DICT_NAME = "knn-dict";
+    private static final String TMP_NAME = DICT_NAME + "-tmp";
+    // Ficheros que escribe KnnVectorDict.build
+    private static final String[] EXTENSIONS = {".fst", ".bin"};
+    private static final String SOURCE_NAME = DICT_NAME + ".source";
+
+    private final Directory dir;
+    final int dimension;
+    private final List<KnnVectorDict> dicts = new ArrayList<>();
+    private final ThreadLocal<DemoEmbeddings> embeddings;
+
+    private DocEmbeddings(Directory dir) throws IOException {
+        this.dir = dir;
+        this.dimension = open().getDimension();
+        this.embeddings = ThreadLocal.withInitial(() -> {
+            try {
+                return new DemoEmbeddings(open());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Opens the dictionary of the index directory if it was built from the same text file of words and
+     * their vectors, or builds it again from that file otherwise
+     */
+    static DocEmbeddings build(Path source, Directory dir) throws IOException {
+        String sourceId = source.toAbsolutePath().normalize() + "," + Files.size(source) + ","
+                + Files.getLastModifiedTime(source).toMillis();
+        if (!sourceId.equals(readSource(dir))) {
+            // createOutput no sobrescribe: se construye con otro nombre y después sustituye al anterior
+            delete(dir, TMP_NAME);
+            KnnVectorDict.build(source, dir, TMP_NAME);
+            // Sin el fichero del origen, un fallo a medio cambio hace que se vuelva a construir
+            delete(dir, SOURCE_NAME);
+            delete(dir, DICT_NAME);
+            List<String> names = new ArrayList<>();
+            for (String extension : EXTENSIONS) {
+                dir.rename(TMP_NAME + extension, DICT_NAME + extension);
+                names.add(DICT_NAME + extension);
+            }
+            try (IndexOutput output = dir.createOutput(SOURCE_NAME, IOContext.DEFAULT)) {
+                output.writeString(sourceId);
+            }
+            names.add(SOURCE_NAME);
+            dir.sync(names);
+            dir.syncMetaData();
+        }
+        return new DocEmbeddings(dir);
+    }
+
+    // Origen con el que se construyó el diccionario, null si no hay
+    private static String readSource(Directory dir) throws IOException {
+        if (!Arrays.asList(dir.listAll()).contains(SOURCE_NAME))
+            return null;
+        try (IndexInput input = dir.openInput(SOURCE_NAME, IOContext.READONCE)) {
+            return input.readString();
+        }
+    }
+
+    // Borra el fichero, o los del diccionario con ese nombre, que existan
+    private static void delete(Directory dir, String name) throws IOException {
+        List<String> files = Arrays.asList(dir.listAll());
+        for (String file : files)
+            if (file.equals(name) || (file.startsWith(name + ".") && Arrays.asList(EXTENSIONS)
+                    .contains(file.substring(name.length()))))
+                dir.deleteFile(file);
+    }
+
+    private synchronized KnnVectorDict open() throws IOException {
+        KnnVectorDict dict = new KnnVectorDict(dir, DICT_NAME);
+        dicts.add(dict);
+        return dict;
+    }
+
+    /** Embedding of the text, or null if none of its tokens is in the dictionary */
+    float[] embed(Reader text) throws IOException {
+        float[] vector = embeddings.get().computeEmbedding(text);
+        // Se copia porque el analizador reutiliza el array en el siguiente documento del hilo
+        for (float value : vector)
+            if (value != 0)
+                return vector.clone();
+        return null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOUtils.close(dicts);
+    }
+}
@@ -0,0 +1,171 @@
+package udc.rigrado;
+
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Size, modification time and content hash of every file in an index, stored as doc values next to
+ * each document. An incremental run loads it once, takes the entry of every file it crawls and
+ * deletes the documents of the files that were never taken. Only incremental runs hash the content:
+ * the documents written by other runs have no hash, and are indexed again if their attributes change.
+ */
+class FileManifest {
+
+    static final String PATH = "manifestPath";
+    static final String SIZE = "manifestSize";
+    static final String MODIFIED = "manifestModified";
+    static final String HASH = "manifestHash";
+
+    static class Entry {
+        final long size;
+        final long modified;
+        final byte[] hash;
+
+        Entry(long size, long modified, byte[] hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+
+        boolean sameAttributes(BasicFileAttributes attr) {
+            return size == attr.size() && modified == attr.lastModifiedTime().toMillis();
+        }
+
+        boolean sameContent(BasicFileAttributes attr, byte[] hash) {
+            return this.hash != null && size == attr.size() && Arrays.equals(this.hash, hash);
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Directorios listados enteros, y los que se vieron en algún listado aunque no se recorrieran
+    private final Set<Path> crawled = ConcurrentHashMap.newKeySet();
+    private final Set<Path> seen = ConcurrentHashMap.newKeySet();
+
+    private FileManifest() {
+    }
+
+    /** Reads the manifest of the live documents visible to the writer */
+    static FileManifest load(IndexWriter writer) throws IOException {
+        FileManifest manifest = new FileManifest();
+
+        try (DirectoryReader reader = DirectoryReader.open(writer)) {
+            for (LeafReaderContext leaf : reader.leaves()) {
+                LeafReader leafReader = leaf.reader();
+                BinaryDocValues paths = leafReader.getBinaryDocValues(PATH);
+                NumericDocValues sizes = leafReader.getNumericDocValues(SIZE);
+                NumericDocValues modified = leafReader.getNumericDocValues(MODIFIED);
+                BinaryDocValues hashes = leafReader.getBinaryDocValues(HASH);
+                Bits liveDocs = leafReader.getLiveDocs();
+                // Los documentos indexados antes de existir el manifiesto no tienen estos campos
+                if (paths == null || sizes == null || modified == null)
+                    continue;
+
+                for (int doc = paths.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = paths.nextDoc()) {
+                    if (liveDocs != null && !liveDocs.get(doc))
+                        continue;
+                    if (!sizes.advanceExact(doc) || !modified.advanceExact(doc))
+                        continue;
+                    // Sin hash si el documento no lo escribió una ejecución incremental
+                    byte[] hash = hashes != null && hashes.advanceExact(doc)
+                            ? BytesRef.deepCopyOf(hashes.binaryValue()).bytes : null;
+                    manifest.entries.put(paths.binaryValue().utf8ToString(),
+                            new Entry(sizes.longValue(), modified.longValue(), hash));
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /** Removes and returns the entry of a crawled file, or null if it is not in the index yet */
+    Entry take(String path) {
+        return entries.remove(path);
+    }
+
+    /** Records a directory whose whole listing was read */
+    void crawled(Path dir) {
+        crawled.add(dir);
+    }
+
+    /** Records a directory found in a listing, whether it was crawled or not (depth limit, errors) */
+    void seen(Path dir) {
+        seen.add(dir);
+    }
+
+    /**
+     * Paths under docDir that were in the index but are gone. A file not taken is only gone if the
+     * nearest of its ancestors that still exists was crawled: a directory that was seen but not
+     * crawled, because of the depth limit or an error, keeps the documents below it.
+     */
+    List<String> missing(Path docDir) {
+        List<String> missing = new ArrayList<>();
+        for (String path : entries.keySet()) {
+            Path file = Paths.get(path);
+            if (!file.startsWith(docDir))
+                continue;
+            // Se sube desde el directorio del fichero hasta el primero del que se sepa algo
+            for (Path dir = file.getParent(); dir != null && dir.startsWith(docDir); dir = dir.getParent()) {
+                if (crawled.contains(dir)) {
+                    missing.add(path);
+                    break;
+                }
+                if (seen.contains(dir))
+                    break;
+            }
+        }
+        return missing;
+    }
+
+    static byte[] hash(ByteBuffer content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(content.duplicate());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Manifest fields of one document, refilled for every file instead of created again */
+    static class Fields {
+        private final BytesRefBuilder pathBytes = new BytesRefBuilder();
+        private final BytesRef hashBytes = new BytesRef();
+        private final BinaryDocValuesField path = new BinaryDocValuesField(PATH, pathBytes.get());
+        private final NumericDocValuesField size = new NumericDocValuesField(SIZE, 0L);
+        private final NumericDocValuesField modified = new NumericDocValuesField(MODIFIED, 0L);
+        private final BinaryDocValuesField hash = new BinaryDocValuesField(HASH, hashBytes);
+
+        /** Adds the fields of a file, without the hash if it is null */
+        void addTo(Document doc, String path, BasicFileAttributes attr, byte[] hash) {
+            pathBytes.copyChars(path);
+            this.path.setBytesValue(pathBytes.get());
+            size.setLongValue(attr.size());
+            modified.setLongValue(attr.lastModifiedTime().toMillis());
+
+            doc.add(this.path);
+            doc.add(size);
+            doc.add(modified);
+            if (hash != null) {
+                hashBytes.bytes = hash;
+                hashBytes.length = hash.length;
+                this.hash.setBytesValue(hashBytes);
+                doc.add(this.hash);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package udc.rigrado;
+
+import org.apache.lucene.index.IndexReader;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * IDF (log10 of the number of documents over the document frequency) of every term of a field, by
+ * vocabulary ordinal. It is computed once per reader from the same pass over the terms dictionary that
+ * builds the vocabulary, and dropped when that reader is closed, so a reopened reader gets its own.
+ */
+class IdfTable {
+
+    private static final Map<IndexReader.CacheKey, Map<String, IdfTable>> CACHE = new ConcurrentHashMap<>();
+
+    final TermVocabulary vocabulary;
+    private final double[] idfs;
+
+    private IdfTable(TermVocabulary vocabulary, int numDocs) {
+        this.vocabulary = vocabulary;
+        this.idfs = new double[vocabulary.size()];
+        for (int ord = 0; ord < idfs.length; ord++)
+            idfs[ord] = Math.log10((double) numDocs / (double) vocabulary.docFreq(ord));
+    }
+
+    /** Table of the field for this reader, built the first time it is asked for */
+    static IdfTable get(IndexReader reader, String field) throws IOException {
+        return get(reader, field, 1, Integer.MAX_VALUE);
+    }
+
+    /** Same as {@link #get(IndexReader, String)} with the vocabulary pruned by document frequency */
+    static IdfTable get(IndexReader reader, String field, int minDocFreq, int maxDocFreq) throws IOException {
+        IndexReader.CacheHelper cacheHelper = reader.getReaderCacheHelper();
+        if (cacheHelper == null)
+            return new IdfTable(TermVocabulary.build(reader, field, minDocFreq, maxDocFreq), reader.numDocs());
+
+        Map<String, IdfTable> tables = CACHE.computeIfAbsent(cacheHelper.getKey(), key -> {
+            // Al cerrar el reader sus tablas dejan de ser válidas
+            cacheHelper.addClosedListener(CACHE::remove);
+            return new ConcurrentHashMap<>();
+        });
+        String key = field + "/" + minDocFreq + "/" + maxDocFreq;
+        IdfTable table = tables.get(key);
+        if (table == null) {
+            table = new IdfTable(TermVocabulary.build(reader, field, minDocFreq, maxDocFreq), reader.numDocs());
+            IdfTable previous = tables.putIfAbsent(key, table);
+            if (previous != null)
+                table = previous;
+        }
+        return table;
+    }
+
+    /** Whether any table has been built for this reader and not dropped yet */
+    static boolean cached(IndexReader reader) {
+        IndexReader.CacheHelper cacheHelper = reader.getReaderCacheHelper();
+        if (cacheHelper == null)
+            return false;
+        Map<String, IdfTable> tables = CACHE.get(cacheHelper.getKey());
+        return tables != null && !tables.isEmpty();
+    }
+
+    double idf(int ord) {
+        return idfs[ord];
+    }
+}
@@ -18,16 +18,21 @@ package udc.rigrado;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
@@ -47,10 +52,30 @@ import org.apache.lucene.util.IOUtils;
  */
 public class IndexFiles implements AutoCloseable {
 
-    private final ExecutorService executor;
+    private final ForkJoinPool pool;
+    private final int analyzeThreads;
+    private final int writeThreads;
+    private final int queueSize;
+    private final int batchSize;
     private final Path indexPath;
     private static final String DEFAULT_PROPERTIES_PATH = "./src/main/resources/config.properties";
+    // Ficheros que cada hilo puede tener encolados antes de indexarlos él mismo
+    private static final int PENDING_FILES_PER_THREAD = 64;
     private final Properties properties = new Properties();
+    private final IndexTuning tuning;
+    private final boolean verbose;
+    private final Path metricsPath;
+    private final DocEmbeddings embeddings;
+    // Writers de los shards mientras se indexa con -shards
+    private IndexWriter[] shards;
+    static final FieldType TYPE_STORED_INDEXED = new FieldType();
+    static {
+        TYPE_STORED_INDEXED.setStored(true);
+        TYPE_STORED_INDEXED.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+        TYPE_STORED_INDEXED.setStoreTermVectors(true);
+        TYPE_STORED_INDEXED.setStoreTermVectorPositions(true);
+        TYPE_STORED_INDEXED.freeze();
+    }
     private enum Modes {
         CREATE(OpenMode.CREATE),
         APPEND(OpenMode.APPEND),
@@ -63,31 +88,76 @@ public class IndexFiles implements AutoCloseable {
         }
     }
 
-    private IndexFiles(int numCores, Path indexPath) throws IOException {
+    IndexFiles(int numCores, int analyzeThreads, int writeThreads, int queueSize, int batchSize,
+                       Path indexPath, String profile, boolean verbose, Path metricsPath, DocEmbeddings embeddings)
+            throws IOException {
         try {
             properties.load(new FileInputStream(DEFAULT_PROPERTIES_PATH));
             System.out.println("Properties file loaded successfully!");
         } catch (IOException e) {
             System.err.println("Error reading properties file: " + e);
         }
-        this.executor = Executors.newFixedThreadPool(numCores);
+        this.pool = new ForkJoinPool(numCores);
+        this.analyzeThreads = analyzeThreads;
+        this.writeThreads = writeThreads;
+        this.queueSize = queueSize;
+        this.batchSize = batchSize;
         this.indexPath = indexPath;
+        this.tuning = IndexTuning.load(profile, properties);
+        this.verbose = verbose;
+        this.metricsPath = metricsPath;
+        this.embeddings = embeddings;
     }
 
     /** Index all text files under a directory. */
     public static void main(String[] args) throws Exception {
         String usage = "java IndexFiles"
-                + " [-index INDEX_PATH] [-docs DOCS_PATH] [-update] [-numThreads NUM_THREADS] [-openmode append | create | create_or_append] [-partialIndex] [-deep N]\n\n"
-                + "This indexes the documents in DOCS_PATH, creating a Lucene index\n";
+                + " [-index INDEX_PATH] [-docs DOCS_PATH] [-update] [-numThreads NUM_THREADS] [-openmode append | create | create_or_append] [-partialIndex] [-deep N]\n"
+                + " [-incremental] [-watch] [-deletePartial]\n"
+                + " [-analyzeThreads NUM_THREADS] [-writeThreads NUM_THREADS] [-queueSize N] [-batchSize N]\n"
+                + " [-profile default | bulk-load | serving] [-verbose] [-metrics METRICS_FILE] [-knnDict DICT_SOURCE]\n"
+                + " [-storeStats] [-shards N]\n\n"
+                + "This indexes the documents in DOCS_PATH, creating a Lucene index\n"
+                + "Files are read by -numThreads threads, turned into documents by -analyzeThreads threads and\n"
+                + "added to the index in batches of -batchSize by -writeThreads threads. Each stage buffers up to\n"
+                + "-queueSize elements.\n"
+                + "With -partialIndex, each subdirectory is indexed apart and merged as soon as it is finished;\n"
+                + "-deletePartial removes those partial indexes after merging them.\n"
+                + "With -incremental, files whose size, modification time and content match the index are skipped\n"
+                + "and the documents of deleted files are removed. It needs append or create_or_append openmode.\n"
+                + "With -watch, after indexing it keeps applying the changes under DOCS_PATH until it is stopped.\n"
+                + "-profile sets the RAM buffer, merging and codec of the writers (indexProfile in config.properties);\n"
+                + "bulk-load defers all merges until the documents have been indexed.\n"
+                + "Progress is printed every metricsIntervalMs (config.properties) and a JSON summary at the end,\n"
+                + "or to METRICS_FILE with -metrics. Each indexed file is only printed with -verbose.\n"
+                + "With -knnDict, the words and vectors of DICT_SOURCE (see the Lucene knn demo) give every document\n"
+                + "a " + DocEmbeddings.FIELD + " vector field for SimilarDocs -rep knn.\n"
+                + "With -storeStats, the collection statistics of every field are stored with each commit for StatsField.\n"
+                + "With -shards, the documents are split by the hash of their path into N indexes, INDEX_PATH/shard-0 to\n"
+                + "shard-(N-1), each one with its own writer, which are searched together with SearchShards. It cannot\n"
+                + "be combined with -partialIndex, -incremental or -watch.\n";
         String indexPath = "index";
         String docsPath = null;
         boolean partialIndex = false;
+        boolean deletePartial = false;
         boolean update = false;
+        boolean incremental = false;
+        boolean watch = false;
         int threads = Runtime.getRuntime().availableProcessors();
+        int analyzeThreads = Runtime.getRuntime().availableProcessors();
+        int writeThreads = Runtime.getRuntime().availableProcessors();
+        int queueSize = 1024;
+        int batchSize = 64;
         Modes openmode = Modes.CREATE;
         String mode = null;
         int depth_int = -1;
         String depth = null;
+        String profile = null;
+        boolean verbose = false;
+        String metricsPath = null;
+        String knnDict = null;
+        boolean storeStats = false;
+        int shards = 0;
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -100,9 +170,18 @@ public class IndexFiles implements AutoCloseable {
                 case "-partialIndex":
                     partialIndex = true;
                     break;
+                case "-deletePartial":
+                    deletePartial = true;
+                    break;
                 case "-update":
                     update = true;
                     break;
+                case "-incremental":
+                    incremental = true;
+                    break;
+                case "-watch":
+                    watch = true;
+                    break;
                 case "-deep":
                     depth = args[++i];
                     break;
@@ -112,6 +191,36 @@ public class IndexFiles implements AutoCloseable {
                 case "-openmode":
                     mode = args[++i];
                     break;
+                case "-analyzeThreads":
+                    analyzeThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "-writeThreads":
+                    writeThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "-queueSize":
+                    queueSize = Integer.parseInt(args[++i]);
+                    break;
+                case "-batchSize":
+                    batchSize = Integer.parseInt(args[++i]);
+                    break;
+                case "-profile":
+                    profile = args[++i];
+                    break;
+                case "-verbose":
+                    verbose = true;
+                    break;
+                case "-metrics":
+                    metricsPath = args[++i];
+                    break;
+                case "-knnDict":
+                    knnDict = args[++i];
+                    break;
+                case "-storeStats":
+                    storeStats = true;
+                    break;
+                case "-shards":
+                    shards = Integer.parseInt(args[++i]);
+                    break;
                 default:
                     throw new IllegalArgumentException("Unknown parameter " + args[i]);
             }
@@ -122,11 +231,16 @@ public class IndexFiles implements AutoCloseable {
             System.exit(1);
         }
 
-        if (threads <= 0) {
+        if (threads <= 0 || analyzeThreads <= 0 || writeThreads <= 0) {
             System.err.println("Threads number must be a non-zero positive integer.");
             System.exit(1);
         }
 
+        if (queueSize <= 0 || batchSize <= 0) {
+            System.err.println("Queue and batch sizes must be non-zero positive integers.");
+            System.exit(1);
+        }
+
         if (mode != null) {
             try { openmode = Modes.valueOf(mode.toUpperCase()); }
             catch (IllegalArgumentException e) {
@@ -135,6 +249,24 @@ public class IndexFiles implements AutoCloseable {
             }
         }
 
+        if (profile != null) {
+            try { IndexTuning.Profile.parse(profile); }
+            catch (IllegalArgumentException e) {
+                System.err.println("Profile must be default, bulk-load or serving");
+                System.exit(1);
+            }
+        }
+
+        if (incremental && (openmode == Modes.CREATE || partialIndex)) {
+            System.err.println("Incremental indexing needs append or create_or_append openmode and no -partialIndex");
+            System.exit(1);
+        }
+
+        if (shards < 0 || (shards > 0 && (partialIndex || incremental || watch))) {
+            System.err.println("Shards must be a positive integer, without -partialIndex, -incremental or -watch");
+            System.exit(1);
+        }
+
         if (depth != null) {
             try {
                 depth_int = Integer.parseInt(depth);
@@ -162,15 +294,37 @@ public class IndexFiles implements AutoCloseable {
 
             iwc.setOpenMode(openmode.openMode);
 
-            try (IndexWriter writer = new IndexWriter(dir, iwc);
-                    IndexFiles indexFiles = new IndexFiles(threads, Path.of(indexPath))) {
-                indexFiles.indexDocs(writer, docDir, depth_int, partialIndex, update);
+            // El diccionario de vectores se guarda junto al índice, como en la demo de Lucene
+            DocEmbeddings embeddings = knnDict == null ? null : DocEmbeddings.build(Paths.get(knnDict), dir);
+            try (DocEmbeddings closeEmbeddings = embeddings;
+                    IndexFiles indexFiles = new IndexFiles(threads, analyzeThreads, writeThreads, queueSize, batchSize,
+                            Path.of(indexPath), profile, verbose, metricsPath == null ? null : Path.of(metricsPath),
+                            embeddings)) {
+                System.out.println("Writer profile: " + indexFiles.tuning);
+                if (shards > 0) {
+                    indexFiles.indexShards(shards, openmode.openMode, docDir, depth_int, update, storeStats);
+                } else {
+                    try (IndexWriter writer = new IndexWriter(dir, indexFiles.tuning.apply(iwc))) {
+                        indexFiles.indexDocs(writer, docDir, depth_int, partialIndex, deletePartial, update, incremental);
+                        indexFiles.tuning.finish(writer);
+                        if (watch)
+                            indexFiles.watch(writer, docDir, depth_int, storeStats);
+                    }
+                    // Tras cerrar el writer ya no queda ninguna fusión que cambie los segmentos del último commit
+                    if (storeStats)
+                        CommitStats.store(dir);
+                }
+            } catch (IllegalArgumentException e) {
+                // Un argumento que no encaja con el índice existente, se detecta ya con los recursos abiertos
+                System.err.println(e.getMessage());
+                System.exit(1);
             } finally {
                 IOUtils.close();
             }
 
             Date end = new Date();
-            try (IndexReader reader = DirectoryReader.open(dir)) {
+            try (IndexReader reader = shards > 0 ? new MultiReader(IndexShards.open(Paths.get(indexPath)), true)
+                    : DirectoryReader.open(dir)) {
                 System.out.println("Indexed " + reader.numDocs() + " documents in " + (end.getTime() - start.getTime())
                         + " milliseconds");
             }
@@ -181,17 +335,31 @@ public class IndexFiles implements AutoCloseable {
 
     // Auxiliary structure to ease passing down information to the threads
     public static class IndexInfo {
-        final ExecutorService executor;
+        final Semaphore pendingFiles;
         final boolean update;
+        final FileManifest manifest;
         final Set<String> fileTypesList;
         final boolean onlyTopLines;
         final int topLines;
         final boolean onlyBottomLines;
         final int bottomLines;
+        final Charset charset;
+        final long mmapThreshold;
+        final int maxStoredBytes;
+        final int readChunkSize;
+        // Es el mismo para todos los documentos, se consulta una sola vez
+        final String hostname;
+        final boolean verbose;
+        final DocEmbeddings embeddings;
+        // Con -shards, cada fichero va al writer del shard de su ruta
+        final IndexWriter[] shards;
 
-        public IndexInfo(ExecutorService executor, boolean update, Properties prop) {
-            this.executor = executor;
-            this.update = update;
+        public IndexInfo(int maxPendingFiles, boolean update, FileManifest manifest, boolean verbose,
+                         DocEmbeddings embeddings, IndexWriter[] shards, Properties prop) throws UnknownHostException {
+            this.pendingFiles = new Semaphore(maxPendingFiles);
+            // En modo incremental los ficheros modificados siempre sustituyen a su documento
+            this.update = update || manifest != null;
+            this.manifest = manifest;
             String tmp = prop.getProperty("onlyFiles");
             if (tmp != null) {
                 String[] fileTypesSplit = tmp.split(" ");
@@ -205,9 +373,115 @@ public class IndexFiles implements AutoCloseable {
             if (this.onlyBottomLines = (tmp != null)) {
                 this.bottomLines = Integer.parseInt(tmp);
             } else {this.bottomLines = -1;}
+            this.charset = Charset.forName(prop.getProperty("charset", "UTF-8"));
+            this.mmapThreshold = Long.parseLong(prop.getProperty("mmapThreshold", "16777216"));
+            this.maxStoredBytes = Integer.parseInt(prop.getProperty("maxStoredBytes", "16777216"));
+            this.readChunkSize = Integer.parseInt(prop.getProperty("readChunkSize", "65536"));
+            this.hostname = InetAddress.getLocalHost().getHostName();
+            this.verbose = verbose;
+            this.embeddings = embeddings;
+            this.shards = shards;
+        }
+
+        /** Per file messages, only printed with -verbose */
+        void log(String action, Path file) {
+            if (verbose)
+                System.out.println(action + " " + file);
+        }
+
+        /** Checks the file extension against the onlyFiles property */
+        boolean accepts(Path file) {
+            if (fileTypesList == null)
+                return true;
+            String fileStr = file.getFileName().toString();
+            int i = fileStr.lastIndexOf(".");
+            // Los ficheros sin extensión se indexan siempre
+            return i < 0 || fileTypesList.contains(fileStr.substring(i));
+        }
+    }
+
+    private static void mergePartial(IndexWriter writer, PartialIndex partial, boolean deletePartial) {
+        try {
+            partial.writer.commit();
+            partial.writer.close();
+            writer.addIndexes(partial.writer.getDirectory());
+            partial.writer.getDirectory().close();
+            if (deletePartial)
+                IOUtils.rm(partial.path);
+            System.out.println("Merged partial index " + partial.path);
+        } catch (IOException e) {
+            System.err.println("Error merging partial index " + partial.path);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Keeps applying the changes under docDir to the index until the process is stopped (Ctrl+C).
+     * The timings are read from the watch* properties of config.properties; the refresh interval
+     * defaults to the one of the writer profile.
+     */
+    void watch(IndexWriter writer, Path docDir, int depth, boolean storeStats) throws IOException {
+        IndexInfo ii = new IndexInfo(0, true, null, verbose, embeddings, null, this.properties);
+        long debounceMs = Long.parseLong(properties.getProperty("watchDebounceMs", "500"));
+        long maxDelayMs = Long.parseLong(properties.getProperty("watchMaxDelayMs", "5000"));
+        long refreshMs = Long.parseLong(properties.getProperty("watchRefreshMs", String.valueOf(tuning.refreshMs)));
+        long commitMs = Long.parseLong(properties.getProperty("watchCommitMs", "60000"));
+
+        if (depth == 0) return;
+
+        try (IndexWatcher watcher = new IndexWatcher(writer, ii, debounceMs, maxDelayMs, refreshMs, commitMs,
+                storeStats)) {
+            watcher.registerRoot(docDir, depth);
+
+            // Al parar el proceso se aplican los cambios pendientes y se espera a que main cierre el writer
+            Thread mainThread = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                watcher.stop();
+                try {
+                    mainThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            watcher.run();
         }
     }
 
+    /**
+     * Indexes docDir into numShards shards under the index path, each one with its own writer. The
+     * crawl and the pipeline are the same as for a single index, only the writer of each file changes.
+     * An index that already has another number of shards is an IllegalArgumentException, thrown before
+     * any writer is opened.
+     */
+    void indexShards(int numShards, OpenMode openMode, Path docDir, int depth, boolean update, boolean storeStats)
+            throws IOException {
+        // Otro número de shards repartiría los documentos ya indexados de otra forma
+        int existing = IndexShards.count(indexPath);
+        if (existing > 0 && existing != numShards)
+            throw new IllegalArgumentException("The index in " + indexPath + " has " + existing + " shards, not "
+                    + numShards);
+
+        shards = new IndexWriter[numShards];
+        try {
+            for (int shard = 0; shard < numShards; shard++) {
+                IndexWriterConfig iwc = tuning.apply(new IndexWriterConfig(new StandardAnalyzer()));
+                iwc.setOpenMode(openMode);
+                shards[shard] = new IndexWriter(FSDirectory.open(IndexShards.shardPath(indexPath, shard)), iwc);
+            }
+            indexDocs(shards[0], docDir, depth, false, false, update, false);
+            for (IndexWriter writer : shards)
+                tuning.finish(writer);
+        } finally {
+            IOUtils.close(shards);
+            shards = null;
+        }
+        if (storeStats)
+            for (int shard = 0; shard < numShards; shard++)
+                try (Directory dir = FSDirectory.open(IndexShards.shardPath(indexPath, shard))) {
+                    CommitStats.store(dir);
+                }
+    }
+
     /**
      * Indexes the given file using the given writer, or if a directory is given,
      * recurses over files and directories found under the given directory.
@@ -226,240 +500,766 @@ public class IndexFiles implements AutoCloseable {
      *               files to indt
     * @throws IOException If there is a low-level I/O error
      */
-    void indexDocs(IndexWriter writer, Path docDir, int depth, boolean partialIndex, boolean update) throws IOException {
-        DirectoryStream<Path> directoryStream = Files.newDirectoryStream(docDir);
-        ArrayList<IndexWriter> partialWriters = new ArrayList<>();
-        IndexInfo ii = new IndexInfo(executor, update, this.properties);
-        boolean flag = false;
+    void indexDocs(IndexWriter writer, Path docDir, int depth, boolean partialIndex, boolean deletePartial,
+                   boolean update, boolean incremental) throws IOException {
+        ArrayList<ThreadedIndex> tasks = new ArrayList<>();
 
         // No se indexa nada
         if (depth == 0) return;
 
-        for (final Path subpath : directoryStream) {
-            if (Files.isDirectory(subpath)) {
-                flag = true;
-                final Runnable worker;
+        // Un único hilo añade los índices parciales terminados mientras el resto se sigue indexando
+        ExecutorService merger = partialIndex ? Executors.newSingleThreadExecutor() : null;
+        try {
+            FileManifest manifest = incremental ? FileManifest.load(writer) : null;
+            IndexInfo ii = new IndexInfo(pool.getParallelism() * PENDING_FILES_PER_THREAD, update, manifest, verbose,
+                    embeddings, shards, this.properties);
+
+            IndexMetrics metrics = new IndexMetrics();
+            IndexPipeline pipeline = new IndexPipeline(ii, metrics, analyzeThreads, writeThreads, queueSize, batchSize);
+            metrics.start(Long.parseLong(properties.getProperty("metricsIntervalMs", "10000")));
 
-                if (partialIndex) {
-                    Analyzer analyzer =  new StandardAnalyzer();
-                    IndexWriterConfig partialIwc = new IndexWriterConfig(analyzer);
-                    partialIwc.setOpenMode(writer.getConfig().getOpenMode());
-                    Directory partialDIr = FSDirectory.open(Paths.get(indexPath + "-" + subpath.getFileName()));
-                    IndexWriter partialWriter = new IndexWriter(partialDIr, partialIwc);
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(docDir)) {
+                for (final Path subpath : directoryStream) {
+                    if (Files.isDirectory(subpath)) {
+                        final ThreadedIndex worker;
+                        if (manifest != null)
+                            manifest.seen(subpath);
 
-                    partialWriters.add(partialWriter);
+                        if (partialIndex) {
+                            Analyzer analyzer =  new StandardAnalyzer();
+                            IndexWriterConfig partialIwc = tuning.apply(new IndexWriterConfig(analyzer));
+                            partialIwc.setOpenMode(writer.getConfig().getOpenMode());
+                            Path partialPath = Paths.get(indexPath + "-" + subpath.getFileName());
+                            Directory partialDIr = FSDirectory.open(partialPath);
+                            IndexWriter partialWriter = new IndexWriter(partialDIr, partialIwc);
 
-                    worker = new ThreadedIndex(partialWriter, subpath, ii,depth-1);
-                } else
-                    worker = new ThreadedIndex(writer, subpath, ii, depth-1);
-                executor.execute(worker);
+                            PartialIndex partial = new PartialIndex(partialWriter, partialPath,
+                                    p -> merger.execute(() -> mergePartial(writer, p, deletePartial)));
+                            pipeline.addPartial(partial);
+
+                            worker = new ThreadedIndex(partialWriter, subpath, pipeline, depth-1,
+                                    () -> pipeline.crawled(partialWriter));
+                        } else
+                            worker = new ThreadedIndex(writer, subpath, pipeline, depth-1);
+                        pool.execute(worker);
+                        tasks.add(worker);
+                    }
+                }
+                if (manifest != null)
+                    manifest.crawled(docDir);
             }
-        }
 
-        /* Wait up to 1 minute to finish all the previously submitted jobs */
-        if (flag) {
             try {
-                executor.awaitTermination(60, TimeUnit.MINUTES);
-                executor.shutdownNow(); //garantee shutdown
-            } catch (final InterruptedException e) {
-                e.printStackTrace();
-                System.exit(-2);
+                // Cada tarea termina cuando han terminado todas las que ha generado, así que basta con esperar a las raíces
+                for (ThreadedIndex task : tasks)
+                    task.join();
+            } finally {
+                // Se espera a que los documentos leídos pasen por el resto de etapas
+                try {
+                    pipeline.finish();
+                } catch (final InterruptedException e) {
+                    e.printStackTrace();
+                    System.exit(-2);
+                } finally {
+                    metrics.stop();
+                }
+            }
+
+            if (manifest != null) {
+                // Lo que queda en el manifiesto bajo el directorio recorrido ya no existe
+                List<String> missing = manifest.missing(docDir);
+                for (String path : missing) {
+                    ii.log("Deleting", Paths.get(path));
+                    writer.deleteDocuments(new Term("path", path));
+                }
+                metrics.deleted.add(missing.size());
+                System.out.println("Skipped " + metrics.skipped.sum() + " unchanged files, deleted " + missing.size());
             }
-            if (partialIndex)
-                for (IndexWriter iw : partialWriters) {
-                    iw.commit();
-                    iw.close();
-                    writer.addIndexes(iw.getDirectory());
+
+            // Los índices parciales se terminan de añadir al índice principal
+            if (merger != null) {
+                merger.shutdown();
+                try {
+                    merger.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (final InterruptedException e) {
+                    e.printStackTrace();
+                    System.exit(-2);
                 }
+            }
+
+            System.out.println("All threads finished");
+            metrics.writeSummary(metricsPath);
+        } finally {
+            // Si algo falla el hilo no debe quedarse vivo, aunque termina las fusiones ya encoladas
+            if (merger != null)
+                merger.shutdown();
         }
+    }
 
-        System.out.println("All threads finished");
+    /**
+     * Index of a single subdirectory with -partialIndex. It counts the documents still in the pipeline,
+     * plus one while its subtree is being crawled, and calls onDone once that count reaches zero.
+     */
+    static class PartialIndex {
+        final IndexWriter writer;
+        final Path path;
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final Consumer<PartialIndex> onDone;
+
+        PartialIndex(IndexWriter writer, Path path, Consumer<PartialIndex> onDone) {
+            this.writer = writer;
+            this.path = path;
+            this.onDone = onDone;
+        }
+
+        void add(int delta) {
+            if (pending.addAndGet(delta) == 0)
+                onDone.accept(this);
+        }
     }
 
-    public static class ThreadedIndex implements Runnable {
+    /**
+     * File and attributes prefetched by the I/O stage. Files of at least mmapThreshold bytes are
+     * memory mapped instead of read into the heap, so their content is a direct buffer.
+     */
+    static class FileData {
+        final IndexWriter writer;
+        final Path file;
+        final BasicFileAttributes attr;
+        final ByteBuffer content;
+        final byte[] hash;
 
-        private final Path path;
-        private final IndexWriter writer;
-        private final int depth;
-        private final ExecutorService executor;
-        private final IndexInfo info;
-        private static volatile int threadCount = 0;
-        static final FieldType TYPE_STORED_INDEXED = new FieldType();
-        static {
-            TYPE_STORED_INDEXED.setStored(true);
-            TYPE_STORED_INDEXED.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
-            TYPE_STORED_INDEXED.setStoreTermVectors(true);
-            TYPE_STORED_INDEXED.setStoreTermVectorPositions(true);
-            TYPE_STORED_INDEXED.freeze();
-        }
-        // Non-partial index threaded index
-        public ThreadedIndex(IndexWriter writer, final Path folder,
-                             IndexInfo info, int depth) {
+        FileData(IndexWriter writer, Path file, BasicFileAttributes attr, ByteBuffer content, byte[] hash) {
             this.writer = writer;
-            this.path = folder;
-            this.executor = info.executor;
-            this.depth = depth;
+            this.file = file;
+            this.attr = attr;
+            this.content = content;
+            this.hash = hash;
+        }
+
+        /** Reads a file and its attributes, and hashes it if there is a manifest to compare with */
+        static FileData read(IndexWriter writer, Path file, IndexInfo info) throws IOException {
+            BasicFileAttributes attr = Files.readAttributes(file, BasicFileAttributes.class);
+            ByteBuffer content = readContent(file, attr.size(), info.mmapThreshold);
+            return new FileData(writer, file, attr, content, info.manifest == null ? null : FileManifest.hash(content));
+        }
+
+        static ByteBuffer readContent(Path file, long size, long mmapThreshold) throws IOException {
+            if (size < mmapThreshold)
+                return ByteBuffer.wrap(Files.readAllBytes(file));
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                // Un buffer mapeado no puede pasar de 2GB, del resto del fichero solo se guardan los atributos
+                long mapped = Math.min(channel.size(), Integer.MAX_VALUE);
+                if (mapped < channel.size())
+                    System.err.println("Only the first " + mapped + " bytes of " + file + " will be indexed");
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, mapped);
+            }
+        }
+    }
+
+    /**
+     * Decodes a buffer lazily, readChunkSize chars at a time. Used to tokenize memory mapped files
+     * without ever holding their whole text in the heap.
+     */
+    static class ContentReader extends Reader {
+        private final ByteBuffer in;
+        private final CharsetDecoder decoder;
+        private final CharBuffer out;
+        private boolean decoded = false;
+        private boolean flushed = false;
+
+        ContentReader(ByteBuffer content, Charset charset, int chunkSize) {
+            this.in = content.duplicate();
+            this.decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.out = CharBuffer.allocate(chunkSize);
+            this.out.flip();
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!out.hasRemaining() && !fill())
+                return -1;
+            int n = Math.min(len, out.remaining());
+            out.get(cbuf, off, n);
+            return n;
+        }
+
+        private boolean fill() {
+            out.clear();
+            // Todo el contenido está disponible, así que siempre se decodifica como final de la entrada
+            if (!decoded)
+                decoded = decoder.decode(in, out, true).isUnderflow();
+            if (decoded && !flushed)
+                flushed = decoder.flush(out).isUnderflow();
+            out.flip();
+            return out.hasRemaining();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Document built by the CPU stage, waiting for the writer stage */
+    static class DocData {
+        final IndexWriter writer;
+        final Path file;
+        final DocFields fields;
+
+        DocData(IndexWriter writer, Path file, DocFields fields) {
+            this.writer = writer;
+            this.file = file;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * The fields of one document, created once and refilled for every file with their setters. The
+     * writer stage can only give them back once the document is in the index, so instead of one per
+     * thread the pipeline keeps a pool of them shared by the analyzers and the writers.
+     */
+    static class DocFields {
+        final Document doc = new Document();
+        private final StringField path = new StringField("path", "", Field.Store.YES);
+        private final LongPoint modified = new LongPoint("modified", 0L);
+        private final StringField creationTime = new StringField("creationTime", "", Field.Store.YES);
+        private final StringField lastAccessTime = new StringField("lastAccessTime", "", Field.Store.YES);
+        private final StringField lastModifiedTime = new StringField("lastModifiedTime", "", Field.Store.YES);
+        private final StringField creationTimeLucene = new StringField("creationTimeLucene", "", Field.Store.YES);
+        private final StringField lastAccessTimeLucene = new StringField("lastAccessTimeLucene", "", Field.Store.YES);
+        private final StringField lastModifiedTimeLucene = new StringField("lastModifiedTimeLucene", "", Field.Store.YES);
+        private final TextField contents = new TextField("contents", "", Field.Store.NO);
+        // Los ficheros mapeados se tokenizan desde un Reader, que necesita su propio Field
+        private final TextField contentsReader = new TextField("contents", Reader.nullReader());
+        private final Field contentsStored = new Field("contentsStored", "", TYPE_STORED_INDEXED);
+        private final StringField hostname;
+        private final StringField thread = new StringField("thread", "", Field.Store.YES);
+        private final StringField type = new StringField("type", "", Field.Store.YES);
+        private final StringField sizeKBStored = new StringField("SizeKBStored", "", Field.Store.YES);
+        private final FloatPoint sizeKB = new FloatPoint("sizeKB", 0f);
+        private final FileManifest.Fields manifest = new FileManifest.Fields();
+        private final TextField onlyTopLines = new TextField("onlyTopLines", "", Field.Store.YES);
+        private final TextField onlyBottomLines = new TextField("onlyBottomLines", "", Field.Store.YES);
+        // Se crea con el primer vector, cuando ya se conoce su dimensión
+        private KnnVectorField vector;
+
+        DocFields(String hostname) {
+            this.hostname = new StringField("hostname", hostname, Field.Store.YES);
+        }
+    }
+
+    /**
+     * Read, analyze and write stages of the indexing. The crawler threads read the files and put them
+     * into a bounded queue, analyzer threads turn them into documents and put them into a second
+     * bounded queue, and writer threads add those documents to the index in batches. A full queue
+     * blocks the stage feeding it, so slow disks and busy cores throttle each other instead of
+     * filling the heap.
+     */
+    static class IndexPipeline {
+        // Marcadores de fin: cada hilo que lo recibe lo vuelve a encolar para el siguiente
+        private static final FileData END_OF_FILES = new FileData(null, null, null, null, null);
+        private static final DocData END_OF_DOCS = new DocData(null, null, null);
+
+        final IndexInfo info;
+        final IndexMetrics metrics;
+        private final BlockingQueue<FileData> readQueue;
+        private final BlockingQueue<DocData> docQueue;
+        private final ExecutorService analyzers;
+        private final ExecutorService writers;
+        private final int batchSize;
+        // Campos ya escritos en el índice, listos para el siguiente documento
+        private final BlockingQueue<DocFields> freeFields;
+        private final Map<IndexWriter, PartialIndex> partials = new ConcurrentHashMap<>();
+
+        IndexPipeline(IndexInfo info, IndexMetrics metrics, int analyzeThreads, int writeThreads, int queueSize,
+                      int batchSize) {
             this.info = info;
+            this.metrics = metrics;
+            this.readQueue = new ArrayBlockingQueue<>(queueSize);
+            this.docQueue = new ArrayBlockingQueue<>(queueSize);
+            metrics.queue("read", readQueue::size);
+            metrics.queue("docs", docQueue::size);
+            this.batchSize = batchSize;
+            // Nunca hay más documentos en vuelo que los de la cola, los lotes y los que se están construyendo
+            this.freeFields = new ArrayBlockingQueue<>(queueSize + writeThreads * batchSize + analyzeThreads);
+            this.analyzers = newStage("analyze", analyzeThreads);
+            this.writers = newStage("write", writeThreads);
+            for (int i = 0; i < analyzeThreads; i++)
+                analyzers.execute(this::analyze);
+            for (int i = 0; i < writeThreads; i++)
+                writers.execute(this::write);
         }
 
-        synchronized private void incrementThreadCount(){ threadCount++; }
-
-        synchronized private void decrementThreadCount(){ threadCount--; }
-
-        synchronized private int readThreadCount() { return threadCount; }
-
-        /** Indexes a single document */
-        void indexDoc(IndexWriter writer, Path file) throws IOException {
-            try (InputStream stream = Files.newInputStream(file)) {
-                // make a new, empty document
-                String str = new String(stream.readAllBytes());
-                Document doc = new Document();
-                OpenMode openmode = writer.getConfig().getOpenMode();
-
-                Field pathField = new StringField("path", file.toString(), Field.Store.YES);
-                doc.add(pathField);
-
-                BasicFileAttributes attr = Files.readAttributes(file, BasicFileAttributes.class);
-                FileTime lastModified = attr.lastModifiedTime();
-                FileTime creationTime = attr.creationTime();
-                FileTime lastAccessTime = attr.lastAccessTime();
-                FileTime lastModifiedTime = attr.lastModifiedTime();
-                float size = (float) Files.size(file)/1024;
-
-                String filetype;
-                if (attr.isRegularFile())
-                    filetype = "RegularFile";
-                else if (attr.isSymbolicLink())
-                    filetype = "SymbolicLink";
-                else if (attr.isDirectory())
-                    filetype = "Directory";
-                else filetype = "other";
-
-                doc.add(new LongPoint("modified", lastModified.toMillis()));
-                doc.add(new StringField("creationTime", creationTime.toString(), Field.Store.YES));
-                doc.add(new StringField("lastAccessTime", lastAccessTime.toString(), Field.Store.YES));
-                doc.add(new StringField("lastModifiedTime", lastModifiedTime.toString(), Field.Store.YES));
-                doc.add(new StringField("creationTimeLucene",
-                        DateTools.dateToString(new Date(creationTime.toMillis()), DateTools.Resolution.SECOND), Field.Store.YES));
-                doc.add(new StringField("lastAccessTimeLucene",
-                        DateTools.dateToString(new Date(lastAccessTime.toMillis()), DateTools.Resolution.SECOND), Field.Store.YES));
-                doc.add(new StringField("lastModifiedTimeLucene",
-                        DateTools.dateToString(new Date(lastModifiedTime.toMillis()), DateTools.Resolution.SECOND), Field.Store.YES));
-                doc.add(new TextField("contents", str, Field.Store.NO));
-                doc.add(new Field("contentsStored", str, TYPE_STORED_INDEXED));
-                doc.add(new StringField("hostname", InetAddress.getLocalHost().getHostName(), Field.Store.YES));
-                doc.add(new StringField("thread", Thread.currentThread().getName(), Field.Store.YES));
-                doc.add(new StringField("type", filetype, Field.Store.YES));
-                doc.add(new StringField("SizeKBStored", String.valueOf(size), Field.Store.YES));
-                doc.add(new FloatPoint("sizeKB", size));
-
-                if (info.topLines > 0) {
-                    try {
-                        Stream<String> lines = Files.lines(file);
-                        String linesToAdd;
-                        long len = lines.count();
-                        lines = Files.lines(file);
-                        if (len <= info.topLines)
-                            linesToAdd = lines.collect(Collectors.joining("\n"));
-                        else {
-                            linesToAdd = lines.limit(info.topLines).collect(Collectors.joining("\n"));
-                        }
-                        doc.add(new TextField("onlyTopLines", linesToAdd, Field.Store.YES));
-                        lines.close();
-                    } catch (Exception e) {
-                        System.err.println("Error reading file: " + file);
-                    }
+        void addPartial(PartialIndex partial) {
+            partials.put(partial.writer, partial);
+        }
+
+        // Lleva la cuenta de los documentos en vuelo de cada índice parcial
+        private void track(IndexWriter writer, int delta) {
+            PartialIndex partial = partials.get(writer);
+            if (partial != null)
+                partial.add(delta);
+        }
+
+        /** Called once the whole subtree of a partial index has been read */
+        void crawled(IndexWriter writer) {
+            track(writer, -1);
+        }
+
+        private static ExecutorService newStage(String name, int threads) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(threads, r -> new Thread(r, name + "-" + count.incrementAndGet()));
+        }
+
+        /**
+         * I/O stage: reads the file and hands it to the analyzers, blocking while their queue is full.
+         * In incremental mode files that did not change since they were indexed stop here.
+         */
+        void read(IndexWriter writer, Path file) throws IOException, InterruptedException {
+            // Con -shards no importa el writer del recorrido, el fichero va al shard de su ruta
+            if (info.shards != null)
+                writer = info.shards[IndexShards.shard(file.toString(), info.shards.length)];
+            long start = System.nanoTime();
+            BasicFileAttributes attr = Files.readAttributes(file, BasicFileAttributes.class);
+            FileManifest.Entry indexed = info.manifest == null ? null : info.manifest.take(file.toString());
+            if (indexed != null && indexed.sameAttributes(attr)) {
+                metrics.skipped.increment();
+                return;
+            }
+
+            ByteBuffer content = FileData.readContent(file, attr.size(), info.mmapThreshold);
+            // Sin -incremental el hash no se compara nunca; con él solo se llega aquí si cambiaron los atributos
+            byte[] hash = info.manifest == null ? null : FileManifest.hash(content);
+            metrics.files.increment();
+            metrics.bytes.add(attr.size());
+            if (indexed != null && indexed.sameContent(attr, hash)) {
+                // Solo ha cambiado la fecha: se actualiza el manifiesto sin volver a analizar el fichero
+                metrics.skipped.increment();
+                writer.updateNumericDocValue(new Term("path", file.toString()), FileManifest.MODIFIED,
+                        attr.lastModifiedTime().toMillis());
+                return;
+            }
+            // La espera por la cola llena no cuenta como tiempo de lectura
+            metrics.readLatency.record(System.nanoTime() - start);
+            track(writer, 1);
+            // Se llama desde los hilos del ForkJoinPool del recorrido, que no deben bloquearse sin avisar al pool
+            ForkJoinPool.managedBlock(new QueuePut<>(readQueue, new FileData(writer, file, attr, content, hash)));
+        }
+
+        /**
+         * Put into a bounded queue that lets a {@link ForkJoinPool} start a spare thread while the
+         * caller waits for room, so the crawl keeps its parallelism with the queue full.
+         */
+        private static class QueuePut<E> implements ForkJoinPool.ManagedBlocker {
+            private final BlockingQueue<E> queue;
+            private final E element;
+            private boolean done;
+
+            QueuePut(BlockingQueue<E> queue, E element) {
+                this.queue = queue;
+                this.element = element;
+            }
+
+            @Override
+            public boolean block() throws InterruptedException {
+                if (!done) {
+                    queue.put(element);
+                    done = true;
                 }
-                if (info.bottomLines > 0) {
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return done || (done = queue.offer(element));
+            }
+        }
+
+        private void analyze() {
+            try {
+                FileData data;
+                while ((data = readQueue.take()) != END_OF_FILES) {
+                    DocFields fields = freeFields.poll();
+                    if (fields == null)
+                        fields = new DocFields(info.hostname);
+                    long start = System.nanoTime();
                     try {
-                        Stream<String> lines = Files.lines(file);
-                        String lastLines;
-                        long len = lines.count();
-                        lines = Files.lines(file);
-                        if (len <= info.bottomLines) {
-                            lastLines = lines.collect(Collectors.joining("\n"));
-                        } else {
-                            lastLines = lines.skip(len - info.bottomLines).collect(Collectors.joining("\n"));
-                        }
-                        doc.add(new TextField("onlyBottomLines", lastLines, Field.Store.YES));
-                        lines.close();
-                    } catch (Exception e) {
-                        System.err.println("Error reading file: " + file);
+                        buildDocument(data, info, fields);
+                        metrics.analyzeLatency.record(System.nanoTime() - start);
+                    } catch (RuntimeException | IOException e) {
+                        // Un fichero erróneo no debe parar la etapa, el resto de hilos espera su marcador de fin
+                        System.err.println("Error indexing file: " + data.file);
+                        e.printStackTrace();
+                        metrics.analyzeFailures.increment();
+                        track(data.writer, -1);
+                        freeFields.offer(fields);
+                        continue;
                     }
+                    docQueue.put(new DocData(data.writer, data.file, fields));
                 }
+                readQueue.put(END_OF_FILES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void write() {
+            List<DocData> batch = new ArrayList<>(batchSize);
+            boolean end = false;
+            try {
+                while (!end) {
+                    batch.add(docQueue.take());
+                    docQueue.drainTo(batch, batchSize - 1);
+                    // Tras el marcador de fin no se encola nada más, así que solo puede ser el último
+                    if (end = (batch.get(batch.size() - 1) == END_OF_DOCS))
+                        batch.remove(batch.size() - 1);
+                    writeBatch(batch);
+                    batch.clear();
+                }
+                docQueue.put(END_OF_DOCS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void writeBatch(List<DocData> batch) {
+            // Se agrupan los documentos que van al mismo writer (varios con -partialIndex o -shards), sin
+            // cambiar el orden de los de un mismo writer
+            batch.sort(Comparator.comparingInt(data -> System.identityHashCode(data.writer)));
+            int from = 0;
+            while (from < batch.size()) {
+                IndexWriter writer = batch.get(from).writer;
+                int to = from + 1;
+                while (to < batch.size() && batch.get(to).writer == writer)
+                    to++;
+                long start = System.nanoTime();
+                try {
+                    writeDocs(writer, batch.subList(from, to));
+                    metrics.writeLatency.record(System.nanoTime() - start);
+                    metrics.docs.add(to - from);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Error writing documents to the index");
+                    e.printStackTrace();
+                    metrics.writeFailures.add(to - from);
+                } finally {
+                    track(writer, from - to);
+                    for (int i = from; i < to; i++)
+                        freeFields.offer(batch.get(i).fields);
+                }
+                from = to;
+            }
+        }
 
-                switch (openmode){
+        private void writeDocs(IndexWriter writer, List<DocData> docs) throws IOException {
+            OpenMode openmode = writer.getConfig().getOpenMode();
+            List<Document> toAdd = new ArrayList<>(docs.size());
+
+            for (DocData data : docs) {
+                switch (openmode) {
                     case CREATE:
-                        System.out.println("Adding " + file);
-                        writer.addDocument(doc);
+                        info.log("Adding", data.file);
+                        toAdd.add(data.fields.doc);
                         break;
                     case APPEND:
                         if (info.update) {
-                            System.out.println("Updating " + file);
-                            writer.updateDocument(new Term("path", file.toString()), doc);
+                            info.log("Updating", data.file);
+                            writer.updateDocument(new Term("path", data.file.toString()), data.fields.doc);
                         } else {
                             // Acepta duplicados
-                            System.out.println("Adding " + file);
-                            writer.addDocument(doc);
+                            info.log("Adding", data.file);
+                            toAdd.add(data.fields.doc);
                         }
                         break;
                     case CREATE_OR_APPEND:
-                        System.out.println("Indexing " + file);
-                        writer.updateDocument(new Term("path", file.toString()), doc);
+                        info.log("Indexing", data.file);
+                        writer.updateDocument(new Term("path", data.file.toString()), data.fields.doc);
                         break;
                     default:
                         break;
                 }
             }
+            if (!toAdd.isEmpty())
+                writer.addDocuments(toAdd);
         }
 
-        @Override
-        public void run() {
-            incrementThreadCount();
-            // Iterate over directory, indexing files and making recursive calls with directories
+        /** Waits until every file read so far has been written to the index */
+        void finish() throws InterruptedException {
+            readQueue.put(END_OF_FILES);
+            analyzers.shutdown();
+            analyzers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            docQueue.put(END_OF_DOCS);
+            writers.shutdown();
+            writers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Builds the document for a file read by the I/O stage. This is the CPU stage of the pipeline: the
+     * text analysis itself still happens inside {@link IndexWriter#addDocuments}, in the writer stage.
+     */
+    static Document buildDocument(FileData data, IndexInfo info, DocFields fields) throws IOException {
+        ByteBuffer stored = data.content.duplicate();
+        stored.limit(stored.position() + Math.min(stored.remaining(), info.maxStoredBytes));
+        // Se comprueba antes de decodificar, que deja el buffer vacío
+        boolean truncated = stored.limit() < data.content.limit();
+        String str = info.charset.decode(stored).toString();
+        String path = data.file.toString();
+        Document doc = fields.doc;
+        doc.clear();
 
+        fields.path.setStringValue(path);
+        doc.add(fields.path);
+
+        BasicFileAttributes attr = data.attr;
+        FileTime lastModified = attr.lastModifiedTime();
+        FileTime creationTime = attr.creationTime();
+        FileTime lastAccessTime = attr.lastAccessTime();
+        FileTime lastModifiedTime = attr.lastModifiedTime();
+        float size = (float) attr.size()/1024;
+
+        String filetype;
+        if (attr.isRegularFile())
+            filetype = "RegularFile";
+        else if (attr.isSymbolicLink())
+            filetype = "SymbolicLink";
+        else if (attr.isDirectory())
+            filetype = "Directory";
+        else filetype = "other";
+
+        fields.modified.setLongValue(lastModified.toMillis());
+        fields.creationTime.setStringValue(creationTime.toString());
+        fields.lastAccessTime.setStringValue(lastAccessTime.toString());
+        fields.lastModifiedTime.setStringValue(lastModifiedTime.toString());
+        fields.creationTimeLucene.setStringValue(
+                DateTools.timeToString(creationTime.toMillis(), DateTools.Resolution.SECOND));
+        fields.lastAccessTimeLucene.setStringValue(
+                DateTools.timeToString(lastAccessTime.toMillis(), DateTools.Resolution.SECOND));
+        fields.lastModifiedTimeLucene.setStringValue(
+                DateTools.timeToString(lastModifiedTime.toMillis(), DateTools.Resolution.SECOND));
+        doc.add(fields.modified);
+        doc.add(fields.creationTime);
+        doc.add(fields.lastAccessTime);
+        doc.add(fields.lastModifiedTime);
+        doc.add(fields.creationTimeLucene);
+        doc.add(fields.lastAccessTimeLucene);
+        doc.add(fields.lastModifiedTimeLucene);
+
+        if (data.content.isDirect()) {
+            // Fichero mapeado: se tokeniza leyéndolo por bloques al añadir el documento
+            fields.contentsReader.setReaderValue(new ContentReader(data.content, info.charset, info.readChunkSize));
+            doc.add(fields.contentsReader);
+        } else {
+            // Solo se guarda el principio, pero se tokeniza el fichero entero
+            fields.contents.setStringValue(truncated ? info.charset.decode(data.content.duplicate()).toString() : str);
+            doc.add(fields.contents);
+        }
+        fields.contentsStored.setStringValue(str);
+        fields.thread.setStringValue(Thread.currentThread().getName());
+        fields.type.setStringValue(filetype);
+        fields.sizeKBStored.setStringValue(String.valueOf(size));
+        fields.sizeKB.setFloatValue(size);
+        doc.add(fields.contentsStored);
+        doc.add(fields.hostname);
+        doc.add(fields.thread);
+        doc.add(fields.type);
+        doc.add(fields.sizeKBStored);
+        doc.add(fields.sizeKB);
+        fields.manifest.addTo(doc, path, attr, data.hash);
+
+        // Los fragmentos salen de los bytes ya leídos, sin volver a abrir el fichero
+        if (info.topLines > 0) {
+            fields.onlyTopLines.setStringValue(topLines(data.content, info.topLines, info.charset));
+            doc.add(fields.onlyTopLines);
+        }
+        if (info.bottomLines > 0) {
+            fields.onlyBottomLines.setStringValue(bottomLines(data.content, info.bottomLines, info.charset));
+            doc.add(fields.onlyBottomLines);
+        }
+
+        if (info.embeddings != null) {
+            float[] vector = info.embeddings.embed(new ContentReader(data.content, info.charset, info.readChunkSize));
+            // Sin ninguna palabra del diccionario el documento se queda sin vector
+            if (vector != null) {
+                if (fields.vector == null)
+                    fields.vector = new KnnVectorField(DocEmbeddings.FIELD, vector, DocEmbeddings.SIMILARITY);
+                else
+                    fields.vector.setVectorValue(vector);
+                doc.add(fields.vector);
+            }
+        }
+
+        return doc;
+    }
+
+    /**
+     * Returns the first {@code n} lines of the content, joined with '\n' like {@link Files#lines} would.
+     * Stops scanning as soon as the n-th line terminator is found.
+     */
+    static String topLines(ByteBuffer bytes, int n, Charset charset) {
+        if (!asciiLineBreaks(charset))
+            return topLines(StandardCharsets.UTF_8.encode(charset.decode(bytes.duplicate())), n, StandardCharsets.UTF_8);
+        int start = bytes.position();
+        int end = trimTerminator(bytes, start, bytes.limit());
+        int lines = 0;
+
+        for (int i = start; i < end; i++) {
+            byte b = bytes.get(i);
+            if (b == '\n' || b == '\r') {
+                if (++lines == n) {
+                    end = i;
+                    break;
+                }
+                // \r\n cuenta como un único salto de línea
+                if (b == '\r' && i + 1 < end && bytes.get(i + 1) == '\n')
+                    i++;
+            }
+        }
+        return decodeLines(bytes, start, end, charset);
+    }
+
+    /**
+     * Returns the last {@code n} lines of the content, joined with '\n' like {@link Files#lines} would.
+     * The content is scanned backwards from its end, so only the returned lines are visited.
+     */
+    static String bottomLines(ByteBuffer bytes, int n, Charset charset) {
+        if (!asciiLineBreaks(charset))
+            return bottomLines(StandardCharsets.UTF_8.encode(charset.decode(bytes.duplicate())), n, StandardCharsets.UTF_8);
+        int start = bytes.position();
+        int end = trimTerminator(bytes, start, bytes.limit());
+        int lines = 0;
+
+        for (int i = end - 1; i >= start; i--) {
+            byte b = bytes.get(i);
+            if (b == '\n' || b == '\r') {
+                if (++lines == n) {
+                    start = i + 1;
+                    break;
+                }
+                if (b == '\n' && i - 1 >= start && bytes.get(i - 1) == '\r')
+                    i--;
+            }
+        }
+        return decodeLines(bytes, start, end, charset);
+    }
+
+    /**
+     * Whether the line terminators can be looked for byte by byte, which needs '\r' and '\n' encoded as
+     * their single ASCII bytes. Otherwise (UTF-16, UTF-32, EBCDIC...) the content is decoded first.
+     */
+    static boolean asciiLineBreaks(Charset charset) {
+        byte[] crlf = "\r\n".getBytes(charset);
+        return crlf.length == 2 && crlf[0] == '\r' && crlf[1] == '\n';
+    }
+
+    // Un salto de línea al final del fichero no abre una línea nueva
+    private static int trimTerminator(ByteBuffer bytes, int start, int end) {
+        if (end > start && bytes.get(end - 1) == '\n')
+            end--;
+        if (end > start && bytes.get(end - 1) == '\r')
+            end--;
+        return end;
+    }
+
+    private static String decodeLines(ByteBuffer bytes, int start, int end, Charset charset) {
+        ByteBuffer lines = bytes.duplicate();
+        lines.limit(end).position(start);
+        String str = charset.decode(lines).toString();
+        if (str.indexOf('\r') < 0)
+            return str;
+        return str.replace("\r\n", "\n").replace('\r', '\n');
+    }
+
+    /**
+     * Crawls a directory in the shared {@link ForkJoinPool}. Subdirectories and files are forked as
+     * independent tasks so idle threads can steal them, which keeps every thread busy even when the
+     * tree is lopsided. Forked files are bounded by {@link IndexInfo#pendingFiles}: once the limit is
+     * reached the crawling thread reads the file itself. Each file read is handed to the
+     * {@link IndexPipeline}.
+     */
+    public static class ThreadedIndex extends RecursiveAction {
+
+        private final Path path;
+        private final IndexWriter writer;
+        private final int depth;
+        private final IndexPipeline pipeline;
+        private final IndexInfo info;
+        private final Runnable onComplete;
+
+        public ThreadedIndex(IndexWriter writer, final Path folder,
+                             IndexPipeline pipeline, int depth) {
+            this(writer, folder, pipeline, depth, null);
+        }
+
+        // onComplete se ejecuta cuando se ha leído todo el subárbol
+        public ThreadedIndex(IndexWriter writer, final Path folder,
+                             IndexPipeline pipeline, int depth, Runnable onComplete) {
+            this.writer = writer;
+            this.path = folder;
+            this.depth = depth;
+            this.pipeline = pipeline;
+            this.info = pipeline.info;
+            this.onComplete = onComplete;
+        }
+
+        private void indexFile(Path file) {
             try {
-                DirectoryStream<Path> directoryStream = Files.newDirectoryStream(path);
+                pipeline.read(writer, file);
+            } catch (IOException e) {
+                System.err.println("Error reading file: " + file);
+                e.printStackTrace();
+                pipeline.metrics.readFailures.increment();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
+        @Override
+        protected void compute() {
+            List<ForkJoinTask<?>> forked = new ArrayList<>();
+            // Iterate over directory, indexing files and making recursive calls with directories
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(path)) {
                 for (final Path subpath : directoryStream) {
                     if (Files.isDirectory(subpath)) {
-                        if (this.depth == 0) break;
-                        final Runnable worker =
-                                new ThreadedIndex(this.writer, subpath, this.info, this.depth-1);
-                        this.executor.execute(worker);
-                    } else {
-                        if (info.fileTypesList == null)
-                            indexDoc(writer, subpath);
-                        else {
-                            String file_str = subpath.getFileName().toString();
-                            int i = file_str.lastIndexOf(".");
-                            try {
-                                String extension = file_str.substring(i);
-                                if (info.fileTypesList.contains(extension))
-                                    indexDoc(writer, subpath);
-                            } catch (StringIndexOutOfBoundsException e) {
-                                indexDoc(writer, subpath);
-                            }
+                        if (info.manifest != null)
+                            info.manifest.seen(subpath);
+                        if (this.depth == 0) continue;
+                        forked.add(new ThreadedIndex(this.writer, subpath, this.pipeline, this.depth-1).fork());
+                    } else if (info.accepts(subpath)) {
+                        if (info.pendingFiles.tryAcquire()) {
+                            forked.add(ForkJoinTask.adapt(() -> {
+                                try {
+                                    indexFile(subpath);
+                                } finally {
+                                    info.pendingFiles.release();
+                                }
+                            }).fork());
+                        } else {
+                            // Cola llena, el propio hilo lee el fichero
+                            indexFile(subpath);
                         }
                     }
                 }
-                decrementThreadCount();
-
-                if (readThreadCount() == 0) {
-                    executor.shutdown();
-                }
+                // Solo un listado completo permite dar por borrado lo que no aparece en él
+                if (info.manifest != null)
+                    info.manifest.crawled(path);
             } catch (IOException e) {
-                decrementThreadCount();
                 e.printStackTrace();
-                if (readThreadCount() == 0) {
-                    executor.shutdown();
-                }
             }
+            // Mientras espera, el hilo ejecuta tareas pendientes propias o robadas a otros hilos
+            for (int i = forked.size() - 1; i >= 0; i--)
+                forked.get(i).join();
+            if (onComplete != null)
+                onComplete.run();
         }
     }
 
     @Override
     public void close() throws IOException {
+        pool.shutdown();
         IOUtils.close();
     }
 }
@@ -0,0 +1,170 @@
+package udc.rigrado;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters of an indexing run, updated by the pipeline threads without locking. A reporter thread
+ * prints the progress every few seconds and {@link #summary()} gives the totals as JSON at the end.
+ */
+class IndexMetrics {
+
+    /** Latency histogram with power of two buckets, precise enough for percentiles in a report */
+    static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(nanos, 1)));
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        // Límite superior del cubo en el que cae el percentil
+        long percentile(double p) {
+            long n = count.sum();
+            if (n == 0)
+                return 0;
+            long rank = (long) Math.ceil(p * n);
+            long seen = 0;
+            for (int i = 0; i < 63; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank)
+                    return Math.min(1L << (i + 1), maxNanos.get());
+            }
+            return maxNanos.get();
+        }
+
+        String toJson() {
+            long n = count.sum();
+            return String.format(Locale.ROOT,
+                    "{\"count\": %d, \"meanMs\": %.3f, \"p50Ms\": %.3f, \"p95Ms\": %.3f, \"p99Ms\": %.3f, \"maxMs\": %.3f}",
+                    n, n == 0 ? 0.0 : totalNanos.sum() / (n * 1e6), percentile(0.50) / 1e6, percentile(0.95) / 1e6,
+                    percentile(0.99) / 1e6, maxNanos.get() / 1e6);
+        }
+    }
+
+    final LongAdder files = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    final LongAdder docs = new LongAdder();
+    final LongAdder skipped = new LongAdder();
+    final LongAdder deleted = new LongAdder();
+    final LongAdder readFailures = new LongAdder();
+    final LongAdder analyzeFailures = new LongAdder();
+    final LongAdder writeFailures = new LongAdder();
+    final Histogram readLatency = new Histogram();
+    final Histogram analyzeLatency = new Histogram();
+    final Histogram writeLatency = new Histogram();
+
+    private final Map<String, IntSupplier> queues = new LinkedHashMap<>();
+    private final Map<String, Integer> peakQueues = new LinkedHashMap<>();
+    private final long start = System.nanoTime();
+    private ScheduledExecutorService reporter;
+    private long lastReport = start;
+    private long lastDocs;
+    private long lastBytes;
+
+    /** Queues whose depth is sampled by the reporter */
+    synchronized void queue(String name, IntSupplier depth) {
+        queues.put(name, depth);
+        peakQueues.put(name, 0);
+    }
+
+    /** Prints the progress every intervalMs milliseconds until {@link #stop()}; 0 disables it */
+    void start(long intervalMs) {
+        if (intervalMs <= 0)
+            return;
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(this::report, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (reporter != null)
+            reporter.shutdownNow();
+    }
+
+    // Los picos solo se ven en las muestras periódicas: al terminar las colas solo tienen los marcadores de fin
+    private synchronized String sampleQueues() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, IntSupplier> queue : queues.entrySet()) {
+            int depth = queue.getValue().getAsInt();
+            peakQueues.merge(queue.getKey(), depth, Math::max);
+            sb.append(' ').append(queue.getKey()).append('=').append(depth);
+        }
+        return sb.toString();
+    }
+
+    private synchronized void report() {
+        long now = System.nanoTime();
+        long docs = this.docs.sum();
+        long bytes = this.bytes.sum();
+        double seconds = (now - lastReport) / 1e9;
+
+        System.out.println(String.format(Locale.ROOT,
+                "Progress: %d docs (%.1f docs/s), %.1f MB (%.1f MB/s), %d skipped, %d failed, queues:%s",
+                docs, (docs - lastDocs) / seconds, bytes / 1048576.0, (bytes - lastBytes) / 1048576.0 / seconds,
+                skipped.sum(), failures(), sampleQueues()));
+        lastReport = now;
+        lastDocs = docs;
+        lastBytes = bytes;
+    }
+
+    long failures() {
+        return readFailures.sum() + analyzeFailures.sum() + writeFailures.sum();
+    }
+
+    synchronized String summary() {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        StringBuilder peaks = new StringBuilder();
+        for (Map.Entry<String, Integer> peak : peakQueues.entrySet())
+            peaks.append(peaks.length() == 0 ? "" : ", ").append('"').append(peak.getKey()).append("\": ")
+                    .append(peak.getValue());
+
+        return String.format(Locale.ROOT, "{\n"
+                        + "  \"elapsedMs\": %d,\n"
+                        + "  \"files\": %d,\n"
+                        + "  \"bytes\": %d,\n"
+                        + "  \"docs\": %d,\n"
+                        + "  \"skipped\": %d,\n"
+                        + "  \"deleted\": %d,\n"
+                        + "  \"docsPerSec\": %.1f,\n"
+                        + "  \"bytesPerSec\": %.1f,\n"
+                        + "  \"failures\": {\"read\": %d, \"analyze\": %d, \"write\": %d},\n"
+                        + "  \"peakQueueDepth\": {%s},\n"
+                        + "  \"latency\": {\n"
+                        + "    \"read\": %s,\n"
+                        + "    \"analyze\": %s,\n"
+                        + "    \"writeBatch\": %s\n"
+                        + "  }\n"
+                        + "}",
+                (long) (seconds * 1000), files.sum(), bytes.sum(), docs.sum(), skipped.sum(), deleted.sum(),
+                docs.sum() / seconds, bytes.sum() / seconds, readFailures.sum(), analyzeFailures.sum(),
+                writeFailures.sum(), peaks, readLatency.toJson(), analyzeLatency.toJson(), writeLatency.toJson());
+    }
+
+    /** Writes the summary to the given file, or to the standard output if it is null */
+    void writeSummary(Path file) throws IOException {
+        if (file == null)
+            System.out.println(summary());
+        else
+            Files.writeString(file, summary() + "\n");
+    }
+}
@@ -0,0 +1,75 @@
+package udc.rigrado;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sharded layout of an index: independent indexes in INDEX_PATH/shard-0 to shard-(N-1), each one with
+ * its own writer, and every document in the shard given by the hash of its path. The hash has a fixed
+ * seed, so later runs with the same number of shards update each document in the shard that has it.
+ * The shards are never merged together, SearchShards searches them side by side.
+ */
+class IndexShards {
+
+    private static final String PREFIX = "shard-";
+    private static final int SEED = 0x5bd1e995;
+
+    /** Shard of the document with the given path */
+    static int shard(String path, int numShards) {
+        return Math.floorMod(StringHelper.murmurhash3_x86_32(new BytesRef(path), SEED), numShards);
+    }
+
+    static Path shardPath(Path indexPath, int shard) {
+        return indexPath.resolve(PREFIX + shard);
+    }
+
+    /** Number of shards under indexPath, 0 if it is not a sharded index */
+    static int count(Path indexPath) throws IOException {
+        if (!Files.isDirectory(indexPath))
+            return 0;
+        Map<Integer, Path> shards = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(indexPath, PREFIX + "*")) {
+            for (Path path : stream) {
+                try {
+                    if (Files.isDirectory(path))
+                        shards.put(Integer.parseInt(path.getFileName().toString().substring(PREFIX.length())), path);
+                } catch (NumberFormatException e) {
+                    // No es un shard
+                }
+            }
+        }
+        // Sin todos los shards de 0 a N-1 el reparto por hash no se puede seguir
+        for (int shard = 0; shard < shards.size(); shard++)
+            if (!shards.containsKey(shard))
+                throw new IOException("Shard " + shard + " is missing in " + indexPath);
+        return shards.size();
+    }
+
+    /** Opens a reader for every shard under indexPath, in shard order */
+    static DirectoryReader[] open(Path indexPath) throws IOException {
+        int numShards = count(indexPath);
+        if (numShards == 0)
+            throw new IOException("There are no shards in " + indexPath);
+        DirectoryReader[] readers = new DirectoryReader[numShards];
+        boolean success = false;
+        try {
+            for (int shard = 0; shard < numShards; shard++)
+                readers[shard] = DirectoryReader.open(FSDirectory.open(shardPath(indexPath, shard)));
+            success = true;
+            return readers;
+        } finally {
+            if (!success)
+                IOUtils.closeWhileHandlingException(readers);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package udc.rigrado;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.SearcherManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Keeps an index in sync with a directory tree after the initial crawl. File system events are
+ * collected until the tree has been quiet for the debounce time (or the oldest event is older than
+ * the maximum delay) and then applied to the writer as one batch. A {@link SearcherManager} is
+ * refreshed periodically so searchers see the changes before the next hard commit.
+ */
+class IndexWatcher implements AutoCloseable {
+
+    // Directorio vigilado y la profundidad que le queda, igual que en el recorrido inicial
+    private static class Watched {
+        final Path dir;
+        final int depth;
+        final boolean root;
+
+        Watched(Path dir, int depth, boolean root) {
+            this.dir = dir;
+            this.depth = depth;
+            this.root = root;
+        }
+    }
+
+    private static class Change {
+        final WatchEvent.Kind<?> kind;
+        final Watched parent;
+
+        Change(WatchEvent.Kind<?> kind, Watched parent) {
+            this.kind = kind;
+            this.parent = parent;
+        }
+    }
+
+    private final IndexWriter writer;
+    private final IndexFiles.IndexInfo info;
+    // Los cambios se aplican de uno en uno, así que basta con un único juego de campos
+    private final IndexFiles.DocFields fields;
+    private final WatchService watchService;
+    private final Map<WatchKey, Watched> keys = new HashMap<>();
+    private final SearcherManager searcherManager;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final long debounceMs;
+    private final long maxDelayMs;
+    // Si cada commit guarda las estadísticas de los campos (IndexFiles -storeStats)
+    private final boolean storeStats;
+    private long publishedVersion = -1;
+    private volatile boolean running = true;
+
+    IndexWatcher(IndexWriter writer, IndexFiles.IndexInfo info, long debounceMs, long maxDelayMs,
+                 long refreshMs, long commitMs, boolean storeStats) throws IOException {
+        this.writer = writer;
+        this.info = info;
+        this.fields = new IndexFiles.DocFields(info.hostname);
+        this.debounceMs = debounceMs;
+        this.maxDelayMs = maxDelayMs;
+        this.storeStats = storeStats;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.searcherManager = new SearcherManager(writer, null);
+
+        // Soft commits: se reabre el searcher NRT sin escribir un commit a disco
+        scheduler.scheduleWithFixedDelay(this::refresh, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::commit, commitMs, commitMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Watches the directory given to IndexFiles: only its subdirectories are indexed */
+    void registerRoot(Path docDir, int depth) throws IOException {
+        keys.put(docDir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY),
+                new Watched(docDir, depth, true));
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(docDir)) {
+            for (Path subpath : directoryStream)
+                if (Files.isDirectory(subpath))
+                    register(subpath, depth - 1);
+        }
+    }
+
+    private void register(Path dir, int depth) throws IOException {
+        keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), new Watched(dir, depth, false));
+        if (depth == 0)
+            return;
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(dir)) {
+            for (Path subpath : directoryStream)
+                if (Files.isDirectory(subpath))
+                    register(subpath, depth - 1);
+        }
+    }
+
+    /** Applies the changes under the watched directories until {@link #stop()} is called */
+    void run() throws IOException {
+        Map<Path, Change> pending = new LinkedHashMap<>();
+        long firstEvent = 0;
+        System.out.println("Watching " + keys.size() + " directories for changes");
+
+        while (running) {
+            WatchKey key;
+            try {
+                key = watchService.poll(debounceMs, TimeUnit.MILLISECONDS);
+            } catch (ClosedWatchServiceException e) {
+                break;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            if (key != null) {
+                Watched watched = keys.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (watched == null)
+                        break;
+                    if (event.kind() == OVERFLOW) {
+                        // Se han perdido eventos: se vuelve a recorrer el directorio entero
+                        System.err.println("Too many changes in " + watched.dir + ", rescanning it");
+                        pending.put(watched.dir, new Change(OVERFLOW, watched));
+                    } else {
+                        // El último evento de cada ruta es el que cuenta
+                        Path changed = watched.dir.resolve((Path) event.context());
+                        pending.remove(changed);
+                        pending.put(changed, new Change(event.kind(), watched));
+                    }
+                }
+                if (!key.reset())
+                    keys.remove(key);
+                if (firstEvent == 0)
+                    firstEvent = System.currentTimeMillis();
+                // Mientras sigan llegando eventos se espera, salvo que el lote ya sea demasiado antiguo
+                if (System.currentTimeMillis() - firstEvent < maxDelayMs)
+                    continue;
+            }
+            if (!pending.isEmpty()) {
+                apply(pending);
+                pending.clear();
+                firstEvent = 0;
+            }
+        }
+        if (!pending.isEmpty())
+            apply(pending);
+    }
+
+    private void apply(Map<Path, Change> changes) throws IOException {
+        for (Map.Entry<Path, Change> entry : changes.entrySet()) {
+            Path path = entry.getKey();
+            Change change = entry.getValue();
+
+            if (change.kind == OVERFLOW) {
+                indexTree(path, change.parent.depth, change.parent.root);
+            } else if (Files.isDirectory(path)) {
+                // Las modificaciones de un directorio ya llegan como eventos de sus ficheros
+                if (change.kind == ENTRY_CREATE && change.parent.depth != 0)
+                    indexTree(path, change.parent.depth - 1, false);
+            } else if (Files.exists(path)) {
+                if (!change.parent.root && info.accepts(path))
+                    indexFile(path);
+            } else {
+                // No se sabe si era un fichero o un directorio, así que se borran ambos
+                info.log("Deleting", path);
+                writer.deleteDocuments(new Term("path", path.toString()));
+                writer.deleteDocuments(new PrefixQuery(new Term("path", path + File.separator)));
+            }
+        }
+    }
+
+    private void indexTree(Path dir, int depth, boolean root) throws IOException {
+        if (root) {
+            registerRoot(dir, depth);
+        } else {
+            keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), new Watched(dir, depth, false));
+        }
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(dir)) {
+            for (Path subpath : directoryStream) {
+                if (Files.isDirectory(subpath)) {
+                    if (depth != 0)
+                        indexTree(subpath, depth - 1, false);
+                } else if (!root && info.accepts(subpath)) {
+                    indexFile(subpath);
+                }
+            }
+        }
+    }
+
+    private void indexFile(Path file) {
+        try {
+            IndexFiles.FileData data = IndexFiles.FileData.read(writer, file, info);
+            info.log("Updating", file);
+            writer.updateDocument(new Term("path", file.toString()), IndexFiles.buildDocument(data, info, fields));
+        } catch (IOException e) {
+            // El fichero puede haber desaparecido entre el evento y la lectura
+            System.err.println("Error indexing file: " + file);
+            e.printStackTrace();
+        }
+    }
+
+    private void refresh() {
+        try {
+            searcherManager.maybeRefresh();
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                long version = ((DirectoryReader) searcher.getIndexReader()).getVersion();
+                if (version != publishedVersion) {
+                    publishedVersion = version;
+                    System.out.println("Published " + searcher.getIndexReader().numDocs() + " documents");
+                }
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void commit() {
+        try {
+            if (storeStats)
+                CommitStats.commit(writer);
+            else
+                writer.commit();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Makes {@link #run()} return after applying the pending changes */
+    void stop() {
+        running = false;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        searcherManager.close();
+        watchService.close();
+    }
+}
@@ -0,0 +1,292 @@
+package udc.rigrado;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * K-means with euclidean distance over dense points stored as primitive arrays. The centroids are
+ * seeded with k-means++ from a fixed seed, and the loop stops when no centroid moves more than the
+ * tolerance or after a maximum number of iterations. Hamerly's bounds skip the distance computations
+ * of the points whose centroid cannot have changed.
+ * <p>
+ * Every iteration assigns the points and adds up their clusters in chunks that run in parallel, and
+ * the partial sums of the chunks are then reduced into the new centroids.
+ */
+class KMeans {
+
+    private static final int MIN_CHUNK_SIZE = 64;
+    private static final int MAX_CHUNKS = 64;
+
+    static class Result {
+        final int[] assignments;
+        final double[][] centroids;
+        // Suma de las distancias de cada punto a su centroide
+        final double cost;
+        final int iterations;
+
+        Result(int[] assignments, double[][] centroids, double cost, int iterations) {
+            this.assignments = assignments;
+            this.centroids = centroids;
+            this.cost = cost;
+            this.iterations = iterations;
+        }
+    }
+
+    private final int k;
+    private final int maxIterations;
+    private final double tolerance;
+    private final long seed;
+
+    KMeans(int k, int maxIterations, double tolerance, long seed) {
+        this.k = k;
+        this.maxIterations = maxIterations;
+        this.tolerance = tolerance;
+        this.seed = seed;
+    }
+
+    /** Runs the assignment and update steps of each iteration on the pool */
+    Result fit(double[][] points, ForkJoinPool pool) {
+        int n = points.length;
+        int numClusters = Math.min(k, n);
+        double[][] centroids = seed(points, numClusters, new Random(seed));
+        int[] assignments = new int[n];
+        if (n == 0)
+            return new Result(assignments, centroids, 0, 0);
+        // Cota superior de la distancia al centroide asignado e inferior de la distancia al segundo más cercano
+        double[] upper = new double[n];
+        double[] lower = new double[n];
+        double[] halfGap = new double[numClusters];
+        double[] moved = new double[numClusters];
+        Chunk[] chunks = chunks(n, numClusters, centroids[0].length);
+
+        forEach(pool, chunks.length, c -> chunks[c].assign(points, centroids, assignments, upper, lower));
+
+        int iterations = 0;
+        double[][] current = centroids;
+        while (iterations < maxIterations) {
+            iterations++;
+            double[][] updated = reduce(pool, chunks, current);
+            double maxMoved = 0;
+            for (int c = 0; c < numClusters; c++) {
+                moved[c] = distance(current[c], updated[c]);
+                maxMoved = Math.max(maxMoved, moved[c]);
+            }
+            current = updated;
+            // Se para justo después de actualizar, para que los centroides sean la media de las asignaciones
+            if (maxMoved <= tolerance || iterations == maxIterations)
+                break;
+
+            // Mitad de la distancia de cada centroide al más cercano de los demás
+            Arrays.fill(halfGap, Double.POSITIVE_INFINITY);
+            for (int c = 0; c < numClusters; c++)
+                for (int d = c + 1; d < numClusters; d++) {
+                    double half = distance(current[c], current[d]) / 2;
+                    halfGap[c] = Math.min(halfGap[c], half);
+                    halfGap[d] = Math.min(halfGap[d], half);
+                }
+
+            double[][] step = current;
+            forEach(pool, chunks.length, c -> chunks[c].reassign(points, step, moved, halfGap, assignments, upper, lower));
+        }
+
+        double cost = 0;
+        for (int i = 0; i < n; i++)
+            cost += distance(points[i], current[assignments[i]]);
+        return new Result(assignments, current, cost, iterations);
+    }
+
+    /**
+     * Contiguous range of points with its own partial sums of the clusters. The ranges only depend on
+     * the number of points, and the sums are added up in range order, so the result is the same with
+     * any number of threads.
+     */
+    private static class Chunk {
+        final int from;
+        final int to;
+        final double[][] sums;
+        final int[] counts;
+
+        Chunk(int from, int to, int numClusters, int dimensions) {
+            this.from = from;
+            this.to = to;
+            this.sums = new double[numClusters][dimensions];
+            this.counts = new int[numClusters];
+        }
+
+        void assign(double[][] points, double[][] centroids, int[] assignments, double[] upper, double[] lower) {
+            for (int i = from; i < to; i++)
+                assignNearest(points[i], centroids, assignments, upper, lower, i);
+            accumulate(points, assignments);
+        }
+
+        void reassign(double[][] points, double[][] centroids, double[] moved, double[] halfGap, int[] assignments,
+                      double[] upper, double[] lower) {
+            // Los centroides se han movido: se relajan las cotas en lo que se han desplazado
+            int farthest = 0;
+            for (int c = 1; c < moved.length; c++)
+                if (moved[c] > moved[farthest])
+                    farthest = c;
+            double secondMoved = 0;
+            for (int c = 0; c < moved.length; c++)
+                if (c != farthest)
+                    secondMoved = Math.max(secondMoved, moved[c]);
+
+            for (int i = from; i < to; i++) {
+                upper[i] += moved[assignments[i]];
+                lower[i] -= assignments[i] == farthest ? secondMoved : moved[farthest];
+                double bound = Math.max(halfGap[assignments[i]], lower[i]);
+                if (upper[i] <= bound)
+                    continue;
+                upper[i] = distance(points[i], centroids[assignments[i]]);
+                if (upper[i] <= bound)
+                    continue;
+                assignNearest(points[i], centroids, assignments, upper, lower, i);
+            }
+            accumulate(points, assignments);
+        }
+
+        private void accumulate(double[][] points, int[] assignments) {
+            for (double[] sum : sums)
+                Arrays.fill(sum, 0);
+            Arrays.fill(counts, 0);
+            for (int i = from; i < to; i++) {
+                double[] sum = sums[assignments[i]];
+                double[] point = points[i];
+                for (int d = 0; d < point.length; d++)
+                    sum[d] += point[d];
+                counts[assignments[i]]++;
+            }
+        }
+    }
+
+    private static Chunk[] chunks(int n, int numClusters, int dimensions) {
+        // Como mucho un trozo cada MIN_CHUNK_SIZE puntos, para que las sumas parciales ocupen poco
+        int numChunks = Math.max(1, Math.min(MAX_CHUNKS, n / MIN_CHUNK_SIZE));
+        Chunk[] chunks = new Chunk[numChunks];
+        for (int c = 0; c < numChunks; c++)
+            chunks[c] = new Chunk((int) ((long) c * n / numChunks), (int) ((long) (c + 1) * n / numChunks),
+                    numClusters, dimensions);
+        return chunks;
+    }
+
+    // Media de los puntos de cada cluster; los clusters vacíos conservan su centroide
+    private static double[][] reduce(ForkJoinPool pool, Chunk[] chunks, double[][] centroids) {
+        double[][] updated = new double[centroids.length][];
+        forEach(pool, centroids.length, c -> {
+            double[] sum = new double[centroids[c].length];
+            int count = 0;
+            for (Chunk chunk : chunks) {
+                double[] partial = chunk.sums[c];
+                for (int d = 0; d < sum.length; d++)
+                    sum[d] += partial[d];
+                count += chunk.counts[c];
+            }
+            if (count == 0) {
+                updated[c] = centroids[c].clone();
+                return;
+            }
+            for (int d = 0; d < sum.length; d++)
+                sum[d] /= count;
+            updated[c] = sum;
+        });
+        return updated;
+    }
+
+    private static class Range extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final IntConsumer action;
+
+        Range(int from, int to, IntConsumer action) {
+            this.from = from;
+            this.to = to;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Range(from, mid, action), new Range(mid, to, action));
+            } else if (to > from) {
+                action.accept(from);
+            }
+        }
+    }
+
+    private static void forEach(ForkJoinPool pool, int count, IntConsumer action) {
+        pool.invoke(new Range(0, count, action));
+    }
+
+    // k-means++: cada centroide nuevo se elige con probabilidad proporcional a su distancia al cuadrado
+    private static double[][] seed(double[][] points, int numClusters, Random random) {
+        int n = points.length;
+        double[][] centroids = new double[numClusters][];
+        if (numClusters == 0)
+            return centroids;
+        double[] minSquared = new double[n];
+        centroids[0] = points[random.nextInt(n)].clone();
+        for (int i = 0; i < n; i++)
+            minSquared[i] = squaredDistance(points[i], centroids[0]);
+
+        for (int c = 1; c < numClusters; c++) {
+            double total = 0;
+            for (int i = 0; i < n; i++)
+                total += minSquared[i];
+            int chosen = n - 1;
+            if (total > 0) {
+                double target = random.nextDouble() * total;
+                for (int i = 0; i < n; i++) {
+                    target -= minSquared[i];
+                    if (target < 0) {
+                        chosen = i;
+                        break;
+                    }
+                }
+            } else {
+                // Todos los puntos coinciden con algún centroide
+                chosen = random.nextInt(n);
+            }
+            centroids[c] = points[chosen].clone();
+            for (int i = 0; i < n; i++)
+                minSquared[i] = Math.min(minSquared[i], squaredDistance(points[i], centroids[c]));
+        }
+        return centroids;
+    }
+
+    private static void assignNearest(double[] point, double[][] centroids, int[] assignments, double[] upper,
+                                      double[] lower, int i) {
+        double best = Double.POSITIVE_INFINITY;
+        double second = Double.POSITIVE_INFINITY;
+        int nearest = 0;
+        for (int c = 0; c < centroids.length; c++) {
+            double distance = distance(point, centroids[c]);
+            if (distance < best) {
+                second = best;
+                best = distance;
+                nearest = c;
+            } else if (distance < second) {
+                second = distance;
+            }
+        }
+        assignments[i] = nearest;
+        upper[i] = best;
+        lower[i] = second;
+    }
+
+    static double squaredDistance(double[] a, double[] b) {
+        double sum = 0;
+        for (int d = 0; d < a.length; d++) {
+            double diff = a[d] - b[d];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    static double distance(double[] a, double[] b) {
+        return Math.sqrt(squaredDistance(a, b));
+    }
+}
@@ -0,0 +1,128 @@
+package udc.rigrado;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiBits;
+import org.apache.lucene.util.Bits;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Projected vectors of every document of an index, kept in a file so that later runs map them instead
+ * of reading the term vectors again. The file is rebuilt when it was written for another index version,
+ * field, representation, vocabulary or projection.
+ * <p>
+ * The file is big endian: the magic {@link #MAGIC}, the version, the dimensions, the hash seed, maxDoc,
+ * the index version, the length and UTF-8 bytes of the key of the field, representation and vocabulary, and then
+ * maxDoc vectors of floats, with zeros for the deleted documents and the ones without terms.
+ */
+class ProjectionCache {
+
+    static final int MAGIC = 0x50524A56;
+    static final int VERSION = 1;
+
+    private final int dimensions;
+    private final FloatBuffer vectors;
+
+    private ProjectionCache(int dimensions, FloatBuffer vectors) {
+        this.dimensions = dimensions;
+        this.vectors = vectors;
+    }
+
+    /**
+     * Maps the cache file, writing it first if it is missing or stale
+     *
+     * @param key identifies what the vectors of the source are, such as the field and representation
+     */
+    static ProjectionCache open(Path file, IndexReader reader, String key, VectorProjection projection,
+                                SparseVector.Source source) throws IOException {
+        long indexVersion = reader instanceof DirectoryReader ? ((DirectoryReader) reader).getVersion() : -1;
+        // El vocabulario depende de -minDf/-maxDf, un fichero de otro vocabulario no sirve
+        key += "/" + projection.vocabularySize + "/" + Integer.toHexString(projection.vocabularyHash);
+        if ((long) reader.maxDoc() * projection.dimensions * Float.BYTES > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many documents to cache " + projection.dimensions + " dimensions");
+
+        long headerLength = matchingHeader(file, reader.maxDoc(), indexVersion, key, projection);
+        if (headerLength < 0) {
+            System.out.println("Writing projection cache " + file);
+            write(file, reader, indexVersion, key, projection, source);
+            headerLength = matchingHeader(file, reader.maxDoc(), indexVersion, key, projection);
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, headerLength, channel.size() - headerLength);
+            return new ProjectionCache(projection.dimensions, mapped.asFloatBuffer());
+        }
+    }
+
+    // Longitud de la cabecera si el fichero sirve para este índice, o -1
+    private static long matchingHeader(Path file, int maxDoc, long indexVersion, String key,
+                                       VectorProjection projection) {
+        if (!Files.isRegularFile(file))
+            return -1;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != projection.dimensions
+                    || in.readInt() != projection.seed || in.readInt() != maxDoc || in.readLong() != indexVersion)
+                return -1;
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            byte[] fileKey = new byte[in.readInt()];
+            in.readFully(fileKey);
+            if (!Arrays.equals(fileKey, keyBytes))
+                return -1;
+            long headerLength = 6 * Integer.BYTES + Long.BYTES + keyBytes.length;
+            // Si el tamaño no cuadra el fichero está incompleto
+            long expected = headerLength + (long) maxDoc * projection.dimensions * Float.BYTES;
+            return Files.size(file) == expected ? headerLength : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static void write(Path file, IndexReader reader, long indexVersion, String key,
+                              VectorProjection projection, SparseVector.Source source) throws IOException {
+        Bits liveDocs = MultiBits.getLiveDocs(reader);
+        float[] vector = new float[projection.dimensions];
+        // Se escribe aparte y se renombra, para no dejar un fichero a medias con una cabecera válida
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(projection.dimensions);
+            out.writeInt(projection.seed);
+            out.writeInt(reader.maxDoc());
+            out.writeLong(indexVersion);
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(keyBytes.length);
+            out.write(keyBytes);
+            for (int docID = 0; docID < reader.maxDoc(); docID++) {
+                if (liveDocs == null || liveDocs.get(docID))
+                    projection.project(source.vector(docID), vector);
+                else
+                    Arrays.fill(vector, 0);
+                for (float value : vector)
+                    out.writeFloat(value);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Copies the projected vector of the document into out */
+    float[] get(int docID, float[] out) {
+        FloatBuffer view = vectors.duplicate();
+        view.position(docID * dimensions);
+        view.get(out, 0, dimensions);
+        return out;
+    }
+}
@@ -0,0 +1,188 @@
+package udc.rigrado;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SearchShards implements AutoCloseable {
+
+    private final DirectoryReader[] readers;
+    private final ShardSearcher[] searchers;
+
+    private SearchShards(DirectoryReader[] readers) {
+        this.readers = readers;
+        this.searchers = new ShardSearcher[readers.length];
+        for (int shard = 0; shard < readers.length; shard++)
+            searchers[shard] = new ShardSearcher(readers[shard], readers);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String usage = "java SearchShards"
+                + " [-index INDEX_PATH] [-query QUERY] [-field FIELD_NAME] [-top N] [-threads T]\n\n"
+                + "Searches the shards written by IndexFiles -shards, -threads of them at a time, and merges their\n"
+                + "top N hits. The terms are scored with the statistics of all the shards together, so the scores\n"
+                + "are the ones of a single index with the same documents. FIELD_NAME defaults to contents.\n";
+        String indexPath = null;
+        String queryString = null;
+        String field = "contents";
+        int top = 10;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-index":
+                        indexPath = args[++i];
+                        break;
+                    case "-query":
+                        queryString = args[++i];
+                        break;
+                    case "-field":
+                        field = args[++i];
+                        break;
+                    case "-top":
+                        top = Integer.parseInt(args[++i]);
+                        break;
+                    case "-threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown parameter " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Usage: " + usage);
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        if (indexPath == null || queryString == null || top <= 0 || threads <= 0) {
+            System.err.println("Usage: " + usage);
+            System.exit(1);
+        }
+
+        Query query = null;
+        try {
+            query = new QueryParser(field, new StandardAnalyzer()).parse(queryString);
+        } catch (ParseException e) {
+            System.err.println("Invalid query: " + e.getMessage());
+            System.exit(1);
+        }
+
+        try (SearchShards searchShards = new SearchShards(IndexShards.open(Paths.get(indexPath)))) {
+            TopDocs topDocs = searchShards.search(query, top, threads);
+            System.out.println("Query: " + query.toString(field) + "\n" + topDocs.totalHits + " in "
+                    + searchShards.readers.length + " shards");
+
+            DecimalFormat df = new DecimalFormat();
+            df.setMaximumFractionDigits(4);
+            for (int i = 0; i < topDocs.scoreDocs.length; i++) {
+                ScoreDoc hit = topDocs.scoreDocs[i];
+                String stats = "\nNº " + (i + 1) + ":";
+                stats += "\n\tScore: " + df.format(hit.score);
+                stats += "\n\tShard: " + hit.shardIndex;
+                stats += "\n\tDoc ID: " + hit.doc;
+                stats += "\n\tPath: " + searchShards.readers[hit.shardIndex].document(hit.doc).get("path");
+                System.out.println(stats);
+            }
+        }
+    }
+
+    /** Searches every shard in the executor and merges their hits, with the shard of each one in shardIndex */
+    private TopDocs search(Query query, int top, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, searchers.length));
+        try {
+            List<Future<TopDocs>> futures = new ArrayList<>();
+            for (int shard = 0; shard < searchers.length; shard++) {
+                int shardIndex = shard;
+                futures.add(executor.submit(() -> {
+                    TopDocs topDocs = searchers[shardIndex].search(query, top);
+                    for (ScoreDoc scoreDoc : topDocs.scoreDocs)
+                        scoreDoc.shardIndex = shardIndex;
+                    return topDocs;
+                }));
+            }
+            TopDocs[] shardHits = new TopDocs[futures.size()];
+            for (int shard = 0; shard < shardHits.length; shard++)
+                shardHits[shard] = futures.get(shard).get();
+            // A igual puntuación van primero los del shard anterior
+            return TopDocs.merge(top, shardHits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Searcher of one shard that scores with the term and collection statistics of all the shards, as
+     * the local ones would give each shard a different IDF and average field length.
+     */
+    private static class ShardSearcher extends IndexSearcher {
+        private final IndexReader[] shards;
+
+        ShardSearcher(IndexReader reader, IndexReader[] shards) {
+            super(reader);
+            this.shards = shards;
+        }
+
+        @Override
+        public TermStatistics termStatistics(Term term, int docFreq, long totalTermFreq) throws IOException {
+            long globalDocFreq = 0;
+            long globalTotalTermFreq = 0;
+            for (IndexReader shard : shards) {
+                globalDocFreq += shard.docFreq(term);
+                globalTotalTermFreq += shard.totalTermFreq(term);
+            }
+            return new TermStatistics(term.bytes(), globalDocFreq, globalTotalTermFreq);
+        }
+
+        @Override
+        public CollectionStatistics collectionStatistics(String field) throws IOException {
+            long maxDoc = 0;
+            long docCount = 0;
+            long sumTotalTermFreq = 0;
+            long sumDocFreq = 0;
+            for (IndexReader shard : shards) {
+                CollectionStatistics stats = new IndexSearcher(shard).collectionStatistics(field);
+                maxDoc += shard.maxDoc();
+                if (stats == null)
+                    continue;
+                docCount += stats.docCount();
+                sumTotalTermFreq += stats.sumTotalTermFreq();
+                sumDocFreq += stats.sumDocFreq();
+            }
+            return docCount == 0 ? null : new CollectionStatistics(field, maxDoc, docCount, sumTotalTermFreq, sumDocFreq);
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        IOUtils.close(readers);
+    }
+}
@@ -1,76 +1,98 @@
 package udc.rigrado;
 
 import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnVectorQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.IOUtils;
 
-import javax.print.Doc;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class SimilarDocs implements AutoCloseable {
 
-    private enum RepEnum {
+    enum RepEnum {
         BIN(),
         TF(),
-        TFXIDF()
+        TFXIDF(),
+        KNN()
     }
-    private final LinkedHashMap<String, Double> baseTermVector;
+    private final TermVocabulary vocabulary;
+    private final IdfTable idfTable;
     private final int comparingDocID;
+    // Arrays reutilizados para leer el term vector de cada documento
+    private int[] ords = new int[16];
+    private float[] values = new float[16];
+    // Proyección opcional de los vectores a pocas dimensiones, y su caché en disco
+    private VectorProjection projection;
+    private ProjectionCache projectionCache;
 
-    public SimilarDocs(LinkedHashMap<String, Double> baseTermVector, int docID) {
-        this.baseTermVector = baseTermVector;
+    public SimilarDocs(IdfTable idfTable, int docID) {
+        this.idfTable = idfTable;
+        this.vocabulary = idfTable == null ? null : idfTable.vocabulary;
         this.comparingDocID = docID;
     }
-    public static Double cosineSimilarity(Vector<Double> vec1, Vector<Double> vec2) {
-        double dotProd = 0.0;
-        double sumSquare1 = 0.0;
-        double sumSquare2 = 0.0;
-        double v1;
-        double v2;
-        for (int i = 0; i < vec1.size(); i++) {
-            v1 = vec1.get(i);
-            v2 = vec2.get(i);
-            dotProd += v1 * v2;
-            sumSquare1 += Math.pow(v1, 2);
-            sumSquare2 += Math.pow(v2, 2);
-        }
-        double denom = (Math.sqrt(sumSquare1 * sumSquare2));
-        if (denom == 0) {
-            return null;
-        } else return dotProd / denom;
-    }
-
-    private static class DocInfo implements Comparable<DocInfo> {
+
+    static class DocInfo {
         final int docID;
-        final String path;
         double similarity;
 
-        protected DocInfo(int docID, String path, double similarity) {
+        protected DocInfo(int docID, double similarity) {
             this.docID = docID;
-            this.path = path;
             this.similarity = similarity;
         }
+    }
 
-        @Override
-        public int compareTo(DocInfo o) {
-            return Double.compare(o.similarity, this.similarity);
-        }
+    // Documentos seleccionados, de más a menos similar y a igual similaridad primero el de menor docID
+    private static List<DocInfo> toDocInfos(TopK best) {
+        best.sort();
+        List<DocInfo> similarityList = new ArrayList<>(best.size());
+        for (int i = 0; i < best.size(); i++)
+            similarityList.add(new DocInfo((int) best.ord(i), best.score(i)));
+        return similarityList;
     }
 
     public static void main(String[] args) throws Exception {
         String usage = "java SimilarDocs"
                 + " [-index INDEX_PATH] [-docID D] [-field FIELD_NAME]"
-                + " [-top N] [-rep bin | tf | tfxidf]\n"
-                + "N and D should be positive integers.\n";
+                + " [-top N] [-rep bin | tf | tfxidf | knn] [-mlt [-maxQueryTerms Q] [-minIdf I]]\n"
+                + " [-allPairs OUTPUT_FILE [-threads T]] [-project DIMENSIONS [-projectionCache FILE]]\n"
+                + " [-minDf MIN] [-maxDf MAX]\n"
+                + "N and D should be positive integers.\n"
+                + "With -mlt only the documents sharing a term with D are scored, through the postings of the Q\n"
+                + "terms of D with the best TF x IDF (all of them if Q is 0) and an IDF of at least I.\n"
+                + "With -allPairs the N nearest neighbours of every document are computed by -threads threads\n"
+                + "and written to OUTPUT_FILE in binary; -docID is not needed then.\n"
+                + "With -project the term vectors are hashed into DIMENSIONS dimensions before comparing them,\n"
+                + "and -projectionCache keeps the hashed vectors of the whole index in FILE for later runs.\n"
+                + "With -rep knn, FIELD_NAME is a vector field (" + DocEmbeddings.FIELD + " from IndexFiles -knnDict)\n"
+                + "and the neighbours come from the approximate nearest neighbour search of its HNSW graph.\n"
+                + "-minDf and -maxDf leave out of the vocabulary the terms found in less than MIN documents or in\n"
+                + "more than a MAX fraction of the documents.\n";
         String indexPath = null;
         int top = -1;
         String field = null;
         int docID = -1;
         RepEnum rep = null;
+        boolean mlt = false;
+        int maxQueryTerms = 25;
+        double minIdf = 0;
+        String allPairs = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int projectDims = 0;
+        String projectionCache = null;
+        int minDf = 1;
+        double maxDf = 1.0;
 
         try {
             for (int i = 0; i < args.length; i++) {
@@ -90,6 +112,33 @@ public class SimilarDocs implements AutoCloseable {
                     case "-rep":
                         rep = RepEnum.valueOf(args[++i].toUpperCase());
                         break;
+                    case "-mlt":
+                        mlt = true;
+                        break;
+                    case "-maxQueryTerms":
+                        maxQueryTerms = Integer.parseInt(args[++i]);
+                        break;
+                    case "-minIdf":
+                        minIdf = Double.parseDouble(args[++i]);
+                        break;
+                    case "-allPairs":
+                        allPairs = args[++i];
+                        break;
+                    case "-threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "-project":
+                        projectDims = Integer.parseInt(args[++i]);
+                        break;
+                    case "-projectionCache":
+                        projectionCache = args[++i];
+                        break;
+                    case "-minDf":
+                        minDf = Integer.parseInt(args[++i]);
+                        break;
+                    case "-maxDf":
+                        maxDf = Double.parseDouble(args[++i]);
+                        break;
                     default:
                         throw new IllegalArgumentException("Unknown parameter " + args[i]);
                 }
@@ -99,7 +148,11 @@ public class SimilarDocs implements AutoCloseable {
             e.printStackTrace();
             System.exit(1);
         }
-        if (top < 0 || docID < 0 || field == null || indexPath == null || rep == null) {
+        if (top < 0 || (docID < 0 && allPairs == null) || field == null || indexPath == null || rep == null
+                || threads <= 0 || projectDims < 0 || (projectionCache != null && projectDims == 0)
+                || minDf < 1 || maxDf <= 0 || maxDf > 1
+                || (projectDims > 0 && (mlt || allPairs != null))
+                || (rep == RepEnum.KNN && (mlt || allPairs != null || projectDims > 0))) {
             System.err.println("Usage: " + usage);
             System.exit(1);
         }
@@ -112,39 +165,30 @@ public class SimilarDocs implements AutoCloseable {
             System.exit(-1);
         }
 
-        // Obtiene lista de terminos de la colección
-        LinkedHashMap<String, Double> baseTerms = getTermsInColl(reader, field);
-
-        try (SimilarDocs sd = new SimilarDocs(baseTerms, docID)) {
-            LinkedHashMap<String, Double> map = sd.getTermValuesForDoc(reader, field, rep, sd.comparingDocID);
-            LinkedHashMap<String, Double> map2;
-            Vector<Double> docVector = new Vector<>(map.values());
-            Vector<Double> comparingVector;
-            List<DocInfo> similarityList = new ArrayList<>(reader.numDocs()-1);
-            DocInfo docInfo = new DocInfo(sd.comparingDocID, reader.document(sd.comparingDocID).get("path"), 1);
-
-            // Itera sobre todos los documentos para obtener la similaridad con todos
-            for (int i = 0; i < reader.numDocs(); i++) {
-                System.out.print("\rComparing doc " + i + "/" + (reader.numDocs()-1) + "     ");
-                if (i != sd.comparingDocID) {
-                    map2 = sd.getTermValuesForDoc(reader, field, rep, i);
-                    comparingVector = new Vector<>(map2.values());
-                    Double similarity = cosineSimilarity(docVector, comparingVector);
-                    if (similarity != null) {
-                        similarityList.add(new DocInfo(i, reader.document(i).get("path"), similarity));
-                    }
-                }
+        // Obtiene el vocabulario de la colección, que el modo -mlt no necesita
+        IdfTable idfTable = mlt || rep == RepEnum.KNN ? null : getTermsInColl(reader, field, minDf, maxDf);
+
+        try (SimilarDocs sd = new SimilarDocs(idfTable, docID)) {
+            if (projectDims > 0)
+                sd.useProjection(reader, field, rep, projectDims, projectionCache == null ? null : Paths.get(projectionCache));
+            if (allPairs != null) {
+                sd.allPairs(reader, field, rep, top, threads, Paths.get(allPairs));
+                return;
             }
-            System.out.println();
+            List<DocInfo> similarityList;
+            if (rep == RepEnum.KNN)
+                similarityList = sd.knnSearch(reader, field, top);
+            else if (mlt)
+                similarityList = sd.moreLikeThis(reader, field, rep, maxQueryTerms, minIdf, top);
+            else
+                similarityList = sd.compareAll(reader, field, rep, top);
             if (similarityList.size() == 0) {
                 System.out.println("There are no other documents");
                 System.exit(0);
             }
-            // Ordenarla
-            Collections.sort(similarityList);
 
             DocInfo currentDoc;
-            String stats = "Doc ID: " + docInfo.docID + "\nPath: " + docInfo.path + "\n";
+            String stats = "Doc ID: " + sd.comparingDocID + "\nPath: " + reader.document(sd.comparingDocID).get("path") + "\n";
             stats += "Most similar documents in Collection for field '" + field + "' sorted by " + rep.name() + ":\n";
             System.out.println(stats);
             DecimalFormat df = new DecimalFormat();
@@ -153,7 +197,7 @@ public class SimilarDocs implements AutoCloseable {
             for (int i = 0; i < top; i++) {
                 try {
                     currentDoc = similarityList.get(i);
-                        printSimilarity(currentDoc, i, df);
+                        printSimilarity(currentDoc, reader.document(currentDoc.docID).get("path"), i, df);
                 } catch (IndexOutOfBoundsException e) {
                     System.out.println("\nNo more documents available for this collection");
                     break;
@@ -166,71 +210,347 @@ public class SimilarDocs implements AutoCloseable {
         }
     }
 
-    private static LinkedHashMap<String, Double> getTermsInColl(IndexReader reader, String fieldName) throws IOException {
-        // Se obtiene lista de Leafs de la coleccion
-        List<LeafReaderContext> leafList = reader.leaves();
-        LinkedHashMap<String, Double> list = new LinkedHashMap<>();
+    private void useProjection(IndexReader reader, String field, RepEnum rep, int dimensions, Path cacheFile)
+            throws IOException {
+        projection = new VectorProjection(vocabulary, dimensions, VectorProjection.DEFAULT_SEED);
+        if (cacheFile != null)
+            projectionCache = ProjectionCache.open(cacheFile, reader,
+                    field + "/" + rep.name() + "/" + vocabulary.minDocFreq + "/" + vocabulary.maxDocFreq, projection,
+                    doc -> getTermValuesForDoc(reader, field, rep, doc));
+    }
+
+    private float[] getProjectedValuesForDoc(IndexReader reader, String field, RepEnum rep, int docID, float[] out)
+            throws IOException {
+        if (projectionCache != null)
+            return projectionCache.get(docID, out);
+        return projection.project(getTermValuesForDoc(reader, field, rep, docID), out);
+    }
+
+    /** Compares the document with every other live document of the collection, keeping the top most similar */
+    List<DocInfo> compareAll(IndexReader reader, String field, RepEnum rep, int top) throws IOException {
+        if (projection != null)
+            return compareAllProjected(reader, field, rep, top);
+        SparseVector docVector = getTermValuesForDoc(reader, field, rep, comparingDocID);
+        SparseVector comparingVector;
+        TopK best = new TopK(top, true);
+        Bits liveDocs = MultiBits.getLiveDocs(reader);
+
+        // Itera sobre todos los documentos para obtener la similaridad con todos
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            if (i % 1000 == 0)
+                System.out.print("\rComparing doc " + i + "/" + (reader.maxDoc()-1) + "     ");
+            if (i != comparingDocID && (liveDocs == null || liveDocs.get(i))) {
+                comparingVector = getTermValuesForDoc(reader, field, rep, i);
+                double similarity = docVector.cosine(comparingVector);
+                if (!Double.isNaN(similarity)) {
+                    best.offer(similarity, i);
+                }
+            }
+        }
+        System.out.println();
+        return toDocInfos(best);
+    }
+
+    /** Same as {@link #compareAll} over the projected vectors */
+    private List<DocInfo> compareAllProjected(IndexReader reader, String field, RepEnum rep, int top)
+            throws IOException {
+        float[] docVector = getProjectedValuesForDoc(reader, field, rep, comparingDocID, new float[projection.dimensions]);
+        float[] comparingVector = new float[projection.dimensions];
+        TopK best = new TopK(top, true);
+        Bits liveDocs = MultiBits.getLiveDocs(reader);
+
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            if (i % 1000 == 0)
+                System.out.print("\rComparing doc " + i + "/" + (reader.maxDoc()-1) + "     ");
+            if (i != comparingDocID && (liveDocs == null || liveDocs.get(i))) {
+                double similarity = VectorProjection.cosine(docVector,
+                        getProjectedValuesForDoc(reader, field, rep, i, comparingVector));
+                if (!Double.isNaN(similarity)) {
+                    best.offer(similarity, i);
+                }
+            }
+        }
+        System.out.println();
+        return toDocInfos(best);
+    }
+
+    /**
+     * Approximate nearest neighbours of the document through the HNSW graph of a vector field. For dot
+     * product and cosine vectors the scores of the query are turned back into cosines.
+     */
+    private List<DocInfo> knnSearch(IndexReader reader, String field, int top) throws IOException {
+        LeafReaderContext leaf = reader.leaves().get(ReaderUtil.subIndex(comparingDocID, reader.leaves()));
+        int leafDoc = comparingDocID - leaf.docBase;
+        VectorValues vectors = leaf.reader().getVectorValues(field);
+        if (vectors == null || vectors.advance(leafDoc) != leafDoc) {
+            System.err.println("Document " + comparingDocID + " has no vector in field '" + field + "'");
+            System.exit(1);
+        }
+        float[] vector = vectors.vectorValue().clone();
+        VectorSimilarityFunction function = leaf.reader().getFieldInfos().fieldInfo(field).getVectorSimilarityFunction();
+
+        IndexSearcher searcher = new IndexSearcher(reader);
+        // Se pide uno más porque el propio documento estará entre los más cercanos
+        TopDocs topDocs = searcher.search(new KnnVectorQuery(field, vector, top + 1), top + 1);
+        TopK best = new TopK(top, true);
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            if (scoreDoc.doc == comparingDocID)
+                continue;
+            double similarity = function == VectorSimilarityFunction.EUCLIDEAN ? scoreDoc.score : 2 * scoreDoc.score - 1;
+            best.offer(similarity, scoreDoc.doc);
+        }
+        return toDocInfos(best);
+    }
+
+    /** Writes the top nearest neighbours of every live document to the given file */
+    private void allPairs(IndexReader reader, String field, RepEnum rep, int top, int threads, Path output)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        Bits liveDocs = MultiBits.getLiveDocs(reader);
+        int[] docIDs = new int[reader.numDocs()];
+        SparseVector[] vectors = new SparseVector[reader.numDocs()];
+        int numDocs = 0;
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            if (liveDocs == null || liveDocs.get(i)) {
+                docIDs[numDocs] = i;
+                vectors[numDocs++] = getTermValuesForDoc(reader, field, rep, i);
+            }
+        }
+
+        AllPairsSimilarity similarity = new AllPairsSimilarity(docIDs, vectors, vocabulary.size(), top);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            similarity.compute(pool);
+        } finally {
+            pool.shutdown();
+        }
+        similarity.write(output);
+        System.out.println("Wrote the " + top + " nearest neighbours of " + numDocs + " documents to " + output
+                + " in " + (System.currentTimeMillis() - start) + " milliseconds");
+    }
+
+    // Término del documento comparado, con su peso según la representación elegida
+    private static class QueryTerm {
+        final BytesRef term;
+        final double idf;
+        final double weight;
+        final double score;
+
+        QueryTerm(BytesRef term, int freq, double idf, double weight) {
+            this.term = term;
+            this.idf = idf;
+            this.weight = weight;
+            this.score = freq * idf;
+        }
+    }
 
-        // Itera sobre los leafs del reader para recoger todos los términos de todos los documentos de la colección
-        // Es más eficiente que iterar sobre la lista de terminos de cada documento en la colección
-        for (LeafReaderContext leaf : leafList) {
-            // Se obtiene terminos del leaf
-            Terms terms = leaf.reader().terms(fieldName);
-            if (terms != null) {
-                TermsEnum te = terms.iterator();
-                // Se itera sobre los terminos
-                while (te.next() != null) {
-                    list.put(te.term().utf8ToString(), 0.0);
+    private static double weight(RepEnum mode, int freq, double idf) {
+        switch (mode) {
+            case TF:
+                return freq;
+            case TFXIDF:
+                return freq * idf;
+            default:
+                return 1.0;
+        }
+    }
+
+    /**
+     * Scores only the documents that share a term with the compared one, merging the postings of its
+     * best terms a document at a time, so the cost depends on the length of those postings and the
+     * memory on the number of terms instead of on the size of the collection. The vocabulary of the
+     * collection is not needed: the IDF of each term is looked up once per query and kept for the norms.
+     */
+    List<DocInfo> moreLikeThis(IndexReader reader, String field, RepEnum mode, int maxQueryTerms,
+                               double minIdf, int top) throws IOException {
+        Terms terms = reader.getTermVector(comparingDocID, field);
+        if (terms == null)
+            return new ArrayList<>();
+        Map<BytesRef, Double> idfs = new HashMap<>();
+
+        // Términos del documento, en el orden del term vector
+        List<QueryTerm> queryTerms = new ArrayList<>();
+        TermsEnum termVectors = terms.iterator();
+        PostingsEnum docEnums = null;
+        BytesRef term;
+        while ((term = termVectors.next()) != null) {
+            docEnums = termVectors.postings(docEnums, PostingsEnum.FREQS);
+            docEnums.nextDoc();
+            double idf = idf(reader, field, term, idfs);
+            queryTerms.add(new QueryTerm(BytesRef.deepCopyOf(term), docEnums.freq(), idf,
+                    weight(mode, docEnums.freq(), idf)));
+        }
+
+        // Solo se recorren los postings de los términos más significativos
+        List<QueryTerm> selected = new ArrayList<>();
+        for (QueryTerm queryTerm : queryTerms)
+            if (queryTerm.idf >= minIdf)
+                selected.add(queryTerm);
+        if (maxQueryTerms > 0 && selected.size() > maxQueryTerms) {
+            TopK bestTerms = new TopK(maxQueryTerms, true);
+            for (int i = 0; i < selected.size(); i++)
+                bestTerms.offer(selected.get(i).score, i);
+            bestTerms.sort();
+            List<QueryTerm> best = new ArrayList<>(bestTerms.size());
+            for (int i = 0; i < bestTerms.size(); i++)
+                best.add(selected.get((int) bestTerms.ord(i)));
+            selected = best;
+        }
+
+        double queryNorm = 0;
+        for (QueryTerm queryTerm : queryTerms)
+            queryNorm += queryTerm.weight * queryTerm.weight;
+        queryNorm = Math.sqrt(queryNorm);
+
+        // Solo se guardan los top mejores candidatos
+        TopK best = new TopK(top, true);
+        // A igual documento sale antes el término anterior, así se suma siempre en el mismo orden
+        PriorityQueue<QueryPostings> queue = new PriorityQueue<>(Math.max(1, selected.size()),
+                Comparator.comparingInt((QueryPostings postings) -> postings.postings.docID())
+                        .thenComparingInt(postings -> postings.index));
+        for (LeafReaderContext leaf : reader.leaves()) {
+            Terms leafTerms = leaf.reader().terms(field);
+            if (leafTerms == null)
+                continue;
+            TermsEnum te = leafTerms.iterator();
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            for (int i = 0; i < selected.size(); i++) {
+                if (!te.seekExact(selected.get(i).term))
+                    continue;
+                PostingsEnum postings = te.postings(null, PostingsEnum.FREQS);
+                if (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS)
+                    queue.add(new QueryPostings(selected.get(i), i, postings));
+            }
+
+            // Acumula el producto escalar de cada documento que aparece en algún posting
+            while (!queue.isEmpty()) {
+                int doc = queue.peek().postings.docID();
+                double score = 0;
+                while (!queue.isEmpty() && queue.peek().postings.docID() == doc) {
+                    QueryPostings postings = queue.poll();
+                    score += postings.queryTerm.weight
+                            * weight(mode, postings.postings.freq(), postings.queryTerm.idf);
+                    if (postings.postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS)
+                        queue.add(postings);
                 }
+                int globalDoc = leaf.docBase + doc;
+                if (globalDoc == comparingDocID || (liveDocs != null && !liveDocs.get(doc)))
+                    continue;
+                double similarity = score / (queryNorm * norm(reader, field, mode, globalDoc, idfs));
+                if (!Double.isNaN(similarity))
+                    best.offer(similarity, globalDoc);
             }
         }
-        if (list.size() == 0) {
+        return toDocInfos(best);
+    }
+
+    // Postings de un término de la consulta en un segmento, con su posición entre los seleccionados
+    private static class QueryPostings {
+        final QueryTerm queryTerm;
+        final int index;
+        final PostingsEnum postings;
+
+        QueryPostings(QueryTerm queryTerm, int index, PostingsEnum postings) {
+            this.queryTerm = queryTerm;
+            this.index = index;
+            this.postings = postings;
+        }
+    }
+
+    // IDF del término, buscado en el diccionario solo la primera vez que aparece en la consulta
+    private static double idf(IndexReader reader, String field, BytesRef term, Map<BytesRef, Double> idfs)
+            throws IOException {
+        Double idf = idfs.get(term);
+        if (idf == null) {
+            idf = Math.log10((double) reader.numDocs() / (double) reader.docFreq(new Term(field, term)));
+            idfs.put(BytesRef.deepCopyOf(term), idf);
+        }
+        return idf;
+    }
+
+    // Norma del vector completo de un candidato, leída de su term vector; solo TF x IDF necesita los IDF
+    private static double norm(IndexReader reader, String field, RepEnum mode, int docID, Map<BytesRef, Double> idfs)
+            throws IOException {
+        Terms terms = reader.getTermVector(docID, field);
+        if (terms == null)
+            return 0;
+        if (mode == RepEnum.BIN)
+            return Math.sqrt(terms.size());
+        TermsEnum termVectors = terms.iterator();
+        PostingsEnum docEnums = null;
+        BytesRef term;
+        double sumSquare = 0;
+        while ((term = termVectors.next()) != null) {
+            docEnums = termVectors.postings(docEnums, PostingsEnum.FREQS);
+            docEnums.nextDoc();
+            double weight = weight(mode, docEnums.freq(), mode == RepEnum.TFXIDF ? idf(reader, field, term, idfs) : 0);
+            sumSquare += weight * weight;
+        }
+        return Math.sqrt(sumSquare);
+    }
+
+    private static IdfTable getTermsInColl(IndexReader reader, String fieldName, int minDf, double maxDf)
+            throws IOException {
+        // Recorre el diccionario de términos de toda la colección una sola vez, ya ordenado y con su IDF
+        int maxDocFreq = maxDf >= 1 ? Integer.MAX_VALUE : (int) (maxDf * reader.numDocs());
+        IdfTable idfTable = IdfTable.get(reader, fieldName, minDf, maxDocFreq);
+        if (idfTable.vocabulary.pruned > 0)
+            System.out.println("Vocabulary of " + idfTable.vocabulary.size() + " terms, " + idfTable.vocabulary.pruned
+                    + " left out by document frequency");
+        if (idfTable.vocabulary.size() == 0) {
             System.err.println("The field has no term vector");
             System.exit(-1);
         }
 
-        return list;
+        return idfTable;
     }
 
-    private LinkedHashMap<String, Double> getTermValuesForDoc(IndexReader reader, String strField, RepEnum mode, int docID) throws IOException {
+    private SparseVector getTermValuesForDoc(IndexReader reader, String strField, RepEnum mode, int docID) throws IOException {
         // Obtiene el term vector del documento y el campo
         Terms terms = reader.getTermVector(docID, strField);
-        LinkedHashMap<String, Double> values = new LinkedHashMap<>(baseTermVector);
         if (terms == null) {
-            return values;
+            return new SparseVector(ords, values, 0);
         }
         TermsEnum termVectors = terms.iterator();
         PostingsEnum docEnums = null;
         BytesRef term;
-        Double tmp = null;
+        float tmp = 0;
+        int size = 0;
 
+        // El term vector está ordenado igual que el vocabulario, así que los ordinales salen crecientes
         while ((term = termVectors.next()) != null) {
-            Term tmpterm = new Term(strField, termVectors.term());
+            int ord = vocabulary.ord(term);
+            if (ord < 0)
+                continue;
             docEnums = termVectors.postings(docEnums, PostingsEnum.FREQS);
             // Avanza una posicion del posting para llegar al documento que se está analizando
             docEnums.nextDoc();
             switch (mode) {
                 case TF:
-                    tmp = (double) docEnums.freq();
+                    tmp = docEnums.freq();
                     break;
                 case TFXIDF:
-                    tmp = docEnums.freq() * Math.log10((double) reader.numDocs() / (double) reader.docFreq(tmpterm));
+                    tmp = (float) (docEnums.freq() * idfTable.idf(ord));
                     break;
                 case BIN:
-                    tmp = 1.0;
+                    tmp = 1;
                     break;
             }
-            // Se añade toda la estructura a la lista de frecuencias
-            values.put(term.utf8ToString(), tmp);
+            if (size == ords.length) {
+                ords = ArrayUtil.grow(ords);
+                values = ArrayUtil.growExact(values, ords.length);
+            }
+            ords[size] = ord;
+            values[size++] = tmp;
         }
-        return values;
+        return new SparseVector(ords, values, size);
     }
 
-    private static void printSimilarity(DocInfo currentDoc, int i, DecimalFormat df) {
+    private static void printSimilarity(DocInfo currentDoc, String path, int i, DecimalFormat df) {
         String stats = "\nNº "  + (i + 1) + ":";
         stats += "\n\tSimilarity: " + df.format(currentDoc.similarity*100)+"%";
         stats += "\n\tDoc ID: " + currentDoc.docID;
-        stats += "\n\tPath: " + currentDoc.path + "\n";
+        stats += "\n\tPath: " + path + "\n";
         System.out.println(stats);
     }
 
@@ -0,0 +1,68 @@
+package udc.rigrado;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Term vector of a document as parallel arrays of vocabulary ordinals and weights, sorted by ordinal.
+ * Only the terms that appear in the document are kept, so comparing two documents costs the number
+ * of terms they have instead of the size of the vocabulary.
+ */
+class SparseVector {
+
+    /** Gives the vector of a document, or an empty vector if it has none */
+    interface Source {
+        SparseVector vector(int docID) throws IOException;
+    }
+
+    final int[] ords;
+    final float[] values;
+    final double norm;
+
+    /** Copies the first length entries of the given arrays, whose ordinals must be increasing */
+    SparseVector(int[] ords, float[] values, int length) {
+        this.ords = Arrays.copyOf(ords, length);
+        this.values = Arrays.copyOf(values, length);
+        double sumSquare = 0.0;
+        for (int i = 0; i < length; i++)
+            sumSquare += (double) values[i] * values[i];
+        this.norm = Math.sqrt(sumSquare);
+    }
+
+    /** Same vector scaled to unit length, so the cosine of two of them is their dot product */
+    SparseVector normalized() {
+        if (norm == 0)
+            return this;
+        float[] unit = new float[values.length];
+        for (int i = 0; i < values.length; i++)
+            unit[i] = (float) (values[i] / norm);
+        return new SparseVector(ords, unit, ords.length);
+    }
+
+    int size() {
+        return ords.length;
+    }
+
+    double dot(SparseVector other) {
+        double dotProd = 0.0;
+        int i = 0;
+        int j = 0;
+        // Se recorren ambos a la vez, solo suman los ordinales comunes
+        while (i < ords.length && j < other.ords.length) {
+            if (ords[i] < other.ords[j]) {
+                i++;
+            } else if (ords[i] > other.ords[j]) {
+                j++;
+            } else {
+                dotProd += (double) values[i++] * other.values[j++];
+            }
+        }
+        return dotProd;
+    }
+
+    /** Cosine similarity, or NaN if one of the vectors has no weight */
+    double cosine(SparseVector other) {
+        double denom = norm * other.norm;
+        return denom == 0 ? Double.NaN : dot(other) / denom;
+    }
+}
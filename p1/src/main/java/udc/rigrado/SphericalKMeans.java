@@ -0,0 +1,196 @@
+package udc.rigrado;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Spherical k-means (cosine similarity between unit vectors) over sparse document vectors, trained
+ * with mini-batches. Each iteration samples a batch of documents, assigns them to the most similar
+ * centroid and moves every centroid to the running mean of all the documents it has been given so far,
+ * back on the unit sphere. Only the centroids and one batch are in memory at a time, so the whole
+ * collection can be clustered. The source must give unit length vectors.
+ */
+class SphericalKMeans {
+
+    /** Receives the cluster of each document of the final pass */
+    interface AssignmentConsumer {
+        void accept(int docID, int cluster, double similarity) throws IOException;
+    }
+
+    private final int k;
+    private final int batchSize;
+    private final int maxIterations;
+    private final double tolerance;
+    private final Random random;
+    final float[][] centroids;
+    // Documentos que ha recibido cada centroide desde el principio
+    private final long[] counts;
+    int iterations;
+
+    SphericalKMeans(int k, int numTerms, int batchSize, int maxIterations, double tolerance, long seed) {
+        this.k = k;
+        this.batchSize = batchSize;
+        this.maxIterations = maxIterations;
+        this.tolerance = tolerance;
+        this.random = new Random(seed);
+        this.centroids = new float[k][numTerms];
+        this.counts = new long[k];
+    }
+
+    /**
+     * Trains the centroids on batches sampled from the given documents
+     *
+     * @return false if there were not k documents with terms to start from
+     */
+    boolean fit(int[] docIDs, SparseVector.Source source) throws IOException {
+        if (!seed(docIDs, source))
+            return false;
+
+        SparseVector[] batch = new SparseVector[batchSize];
+        int[] assignments = new int[batchSize];
+        float[] previous = new float[centroids[0].length];
+        for (iterations = 0; iterations < maxIterations; ) {
+            iterations++;
+            int size = sample(docIDs, source, batch);
+            if (size == 0)
+                break;
+            for (int i = 0; i < size; i++)
+                assignments[i] = nearest(batch[i]);
+
+            double maxShift = 0;
+            for (int c = 0; c < k; c++) {
+                int added = 0;
+                for (int i = 0; i < size; i++)
+                    if (assignments[i] == c)
+                        added++;
+                if (added == 0)
+                    continue;
+
+                float[] centroid = centroids[c];
+                System.arraycopy(centroid, 0, previous, 0, centroid.length);
+                // Media acumulada: el centroide pesa lo que los documentos que ya tenía
+                long total = counts[c] + added;
+                float keep = (float) counts[c] / total;
+                for (int t = 0; t < centroid.length; t++)
+                    centroid[t] *= keep;
+                for (int i = 0; i < size; i++) {
+                    if (assignments[i] != c)
+                        continue;
+                    SparseVector vector = batch[i];
+                    for (int j = 0; j < vector.ords.length; j++)
+                        centroid[vector.ords[j]] += vector.values[j] / total;
+                }
+                counts[c] = total;
+                normalize(centroid);
+
+                double cosine = 0;
+                for (int t = 0; t < centroid.length; t++)
+                    cosine += (double) centroid[t] * previous[t];
+                maxShift = Math.max(maxShift, 1 - cosine);
+            }
+            if (maxShift <= tolerance)
+                break;
+        }
+        return true;
+    }
+
+    /** Gives every document with terms the cluster of its most similar centroid */
+    void assign(int[] docIDs, SparseVector.Source source, AssignmentConsumer consumer) throws IOException {
+        for (int docID : docIDs) {
+            SparseVector vector = source.vector(docID);
+            if (vector.size() == 0)
+                continue;
+            int cluster = nearest(vector);
+            consumer.accept(docID, cluster, dot(vector, centroids[cluster]));
+        }
+    }
+
+    int nearest(SparseVector vector) {
+        int nearest = 0;
+        double best = Double.NEGATIVE_INFINITY;
+        for (int c = 0; c < k; c++) {
+            double similarity = dot(vector, centroids[c]);
+            if (similarity > best) {
+                best = similarity;
+                nearest = c;
+            }
+        }
+        return nearest;
+    }
+
+    // k-means++ con distancia 1 - coseno sobre un primer lote
+    private boolean seed(int[] docIDs, SparseVector.Source source) throws IOException {
+        SparseVector[] candidates = new SparseVector[Math.max(batchSize, k)];
+        int size = sample(docIDs, source, candidates);
+        if (size < k)
+            return false;
+
+        double[] distances = new double[size];
+        setCentroid(0, candidates[random.nextInt(size)]);
+        for (int i = 0; i < size; i++)
+            distances[i] = 1 - dot(candidates[i], centroids[0]);
+        for (int c = 1; c < k; c++) {
+            double total = 0;
+            for (int i = 0; i < size; i++)
+                total += Math.max(distances[i], 0);
+            int chosen = random.nextInt(size);
+            if (total > 0) {
+                double target = random.nextDouble() * total;
+                for (int i = 0; i < size; i++) {
+                    target -= Math.max(distances[i], 0);
+                    if (target < 0) {
+                        chosen = i;
+                        break;
+                    }
+                }
+            }
+            setCentroid(c, candidates[chosen]);
+            for (int i = 0; i < size; i++)
+                distances[i] = Math.min(distances[i], 1 - dot(candidates[i], centroids[c]));
+        }
+        return true;
+    }
+
+    private void setCentroid(int c, SparseVector vector) {
+        for (int j = 0; j < vector.ords.length; j++)
+            centroids[c][vector.ords[j]] = vector.values[j];
+    }
+
+    // Rellena el lote con documentos al azar que tengan términos
+    private int sample(int[] docIDs, SparseVector.Source source, SparseVector[] batch) throws IOException {
+        int size = 0;
+        if (docIDs.length <= batch.length) {
+            for (int docID : docIDs) {
+                SparseVector vector = source.vector(docID);
+                if (vector.size() > 0)
+                    batch[size++] = vector;
+            }
+            return size;
+        }
+        // Se limita el número de intentos por si casi ningún documento tiene términos
+        for (int attempts = 0; size < batch.length && attempts < 4 * batch.length; attempts++) {
+            SparseVector vector = source.vector(docIDs[random.nextInt(docIDs.length)]);
+            if (vector.size() > 0)
+                batch[size++] = vector;
+        }
+        return size;
+    }
+
+    private static void normalize(float[] centroid) {
+        double sumSquare = 0;
+        for (float value : centroid)
+            sumSquare += (double) value * value;
+        if (sumSquare == 0)
+            return;
+        float scale = (float) (1 / Math.sqrt(sumSquare));
+        for (int t = 0; t < centroid.length; t++)
+            centroid[t] *= scale;
+    }
+
+    static double dot(SparseVector vector, float[] centroid) {
+        double dotProd = 0;
+        for (int j = 0; j < vector.ords.length; j++)
+            dotProd += (double) vector.values[j] * centroid[vector.ords[j]];
+        return dotProd;
+    }
+}
@@ -1,7 +1,6 @@
 package udc.rigrado;
 
 import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.search.CollectionStatistics;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.store.Directory;
@@ -10,17 +9,21 @@ import org.apache.lucene.util.IOUtils;
 
 import java.io.IOException;
 import java.nio.file.Paths;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 public class StatsField implements AutoCloseable {
 
     public static void main(String[] args) throws Exception {
         String usage = "java StatsField"
-                + " [-index INDEX_PATH] [-field FIELD_NAME]\n\n"
+                + " [-index INDEX_PATH] [-field FIELD_NAME] [-live]\n\n"
                 + "This shows statistics for a field in an index.\n"
-                + "If no field is specified, it will list the stats for all the fields in the index.\n";
+                + "If no field is specified, it will list the stats for all the indexed fields in the index.\n"
+                + "The stats stored with the commit by IndexFiles -storeStats are used when they are up to date,\n"
+                + "unless -live is given.\n";
         String indexPath = null;
         String field = null;
+        boolean live = false;
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -30,6 +33,9 @@ public class StatsField implements AutoCloseable {
                 case "-field":
                     field = args[++i];
                     break;
+                case "-live":
+                    live = true;
+                    break;
                 default:
                     throw new IllegalArgumentException("Unknown parameter " + args[i]);
             }
@@ -41,29 +47,30 @@ public class StatsField implements AutoCloseable {
         }
 
         try (StatsField statsField = new StatsField()) {
-            statsField.readStats(indexPath, field);
+            statsField.readStats(indexPath, field, live);
         }
     }
 
 
-    private void readStats(String indexPath, String field) {
-        CollectionStatistics collectionStats = null;
-        HashSet<IndexableField> fieldList = new HashSet<>();
-
+    private void readStats(String indexPath, String field, boolean live) {
         try {
             Directory indexDir = FSDirectory.open(Paths.get(indexPath));
             DirectoryReader indexReader = DirectoryReader.open(indexDir);
             IndexSearcher searcher = new IndexSearcher(indexReader);
+            // Estadísticas guardadas en el commit, si las hay y corresponden a su contenido
+            Map<String, CollectionStatistics> stored = live ? null : CommitStats.read(indexReader);
+            if (stored != null)
+                System.out.println("Using the statistics stored in commit " + indexReader.getIndexCommit().getSegmentsFileName());
 
-            if (field != null)
-                printStats(searcher.collectionStatistics(field));
-            else {
-                for (int i = 0; i < indexReader.numDocs(); i++) {
-                    fieldList.addAll(indexReader.document(i).getFields());
-                }
-                for (IndexableField idField: fieldList) {
-                    printStats(searcher.collectionStatistics(idField.name()));
-                }
+            // Los campos salen de los FieldInfos de los segmentos, sin leer ningún documento
+            Iterable<String> fields = field != null ? List.of(field)
+                    : stored != null ? stored.keySet() : CommitStats.indexedFields(indexReader);
+            for (String name : fields) {
+                CollectionStatistics stats = stored != null ? stored.get(name) : searcher.collectionStatistics(name);
+                if (stats == null)
+                    System.out.println("\nField '" + name + "' has no indexed terms");
+                else
+                    printStats(stats);
             }
         } catch (IOException e) {
             e.printStackTrace();
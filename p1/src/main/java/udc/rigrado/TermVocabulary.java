@@ -0,0 +1,80 @@
+package udc.rigrado;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+import java.io.IOException;
+
+/**
+ * Dense ordinals for the terms of a field across the whole collection, with their document
+ * frequencies. The terms are read once from the merged terms dictionary, so the ordinals follow the
+ * term order and the term vector of any document maps to increasing ordinals. Terms that are too rare
+ * or too common can be left out, and then they have no ordinal.
+ */
+class TermVocabulary {
+
+    final String field;
+    // Límites de frecuencia de documento con los que se construyó
+    final int minDocFreq;
+    final int maxDocFreq;
+    private final BytesRefHash terms = new BytesRefHash();
+    private int[] docFreqs = new int[0];
+    // Términos descartados por su frecuencia de documento
+    int pruned;
+
+    private TermVocabulary(String field, int minDocFreq, int maxDocFreq) {
+        this.field = field;
+        this.minDocFreq = minDocFreq;
+        this.maxDocFreq = maxDocFreq;
+    }
+
+    static TermVocabulary build(IndexReader reader, String field) throws IOException {
+        return build(reader, field, 1, Integer.MAX_VALUE);
+    }
+
+    /** Only keeps the terms found in at least minDocFreq and at most maxDocFreq documents */
+    static TermVocabulary build(IndexReader reader, String field, int minDocFreq, int maxDocFreq) throws IOException {
+        TermVocabulary vocabulary = new TermVocabulary(field, minDocFreq, maxDocFreq);
+        Terms terms = MultiTerms.getTerms(reader, field);
+        if (terms == null)
+            return vocabulary;
+
+        TermsEnum te = terms.iterator();
+        BytesRef term;
+        while ((term = te.next()) != null) {
+            int docFreq = te.docFreq();
+            if (docFreq < minDocFreq || docFreq > maxDocFreq) {
+                vocabulary.pruned++;
+                continue;
+            }
+            int ord = vocabulary.terms.add(term);
+            if (ord >= vocabulary.docFreqs.length)
+                vocabulary.docFreqs = ArrayUtil.grow(vocabulary.docFreqs, ord + 1);
+            vocabulary.docFreqs[ord] = docFreq;
+        }
+        return vocabulary;
+    }
+
+    int size() {
+        return terms.size();
+    }
+
+    /** Ordinal of the term, or -1 if it is not in the vocabulary */
+    int ord(BytesRef term) {
+        return terms.find(term);
+    }
+
+    /** Number of documents with the term, deleted ones included, like {@link IndexReader#docFreq} */
+    int docFreq(int ord) {
+        return docFreqs[ord];
+    }
+
+    BytesRef term(int ord, BytesRef scratch) {
+        return terms.get(ord, scratch);
+    }
+}
@@ -0,0 +1,143 @@
+package udc.rigrado;
+
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Bounded selection of the best k candidates of a stream, each one a score with an ordinal that
+ * identifies it, such as a docID or the position of a term. The selected candidates are kept in a
+ * binary heap with the worst of them at the root, so each candidate costs O(log k) at most and nothing
+ * is allocated for the ones left out. Equal scores go by lower ordinal first, so the result does not
+ * depend on the order of the stream.
+ * <p>
+ * Every selected candidate is given a slot below k, which it keeps until it is pushed out and which is
+ * then handed over to the candidate that replaces it, so callers can keep whatever else they need of
+ * the candidates in arrays indexed by slot.
+ */
+class TopK {
+
+    private final int k;
+    private final boolean highestFirst;
+    // Puntuación y ordinal de cada slot, crecen según se llenan
+    private double[] scores = new double[0];
+    private long[] ords = new long[0];
+    // Montículo de slots, con el peor candidato en la raíz
+    private int[] heap = new int[0];
+    private int size;
+
+    /**
+     * @param highestFirst whether the best candidates are the ones with the highest scores or the ones
+     *                     with the lowest
+     */
+    TopK(int k, boolean highestFirst) {
+        this.k = k;
+        this.highestFirst = highestFirst;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Whether the candidate would be selected now, to skip preparing the ones that would not */
+    boolean competitive(double score, long ord) {
+        return size < k || (size > 0 && worse(scores[heap[0]], ords[heap[0]], score, ord));
+    }
+
+    /** Offers a candidate, returning the slot given to it or -1 if it was not selected */
+    int offer(double score, long ord) {
+        if (size < k) {
+            if (size == heap.length) {
+                heap = ArrayUtil.grow(heap, size + 1);
+                scores = ArrayUtil.growExact(scores, heap.length);
+                ords = ArrayUtil.growExact(ords, heap.length);
+            }
+            int slot = size;
+            scores[slot] = score;
+            ords[slot] = ord;
+            heap[size] = slot;
+            siftUp(size++);
+            return slot;
+        }
+        if (!competitive(score, ord))
+            return -1;
+        // Sustituye al peor, que deja su slot
+        int slot = heap[0];
+        scores[slot] = score;
+        ords[slot] = ord;
+        siftDown(0, size);
+        return slot;
+    }
+
+    /**
+     * Sorts the selected candidates from best to worst, for {@link #score}, {@link #ord} and {@link #slot}.
+     * No more candidates can be offered until {@link #clear} is called.
+     */
+    TopK sort() {
+        // Cada vuelta lleva el peor de los que quedan al final
+        for (int n = size; n > 1; n--) {
+            swap(0, n - 1);
+            siftDown(0, n - 1);
+        }
+        return this;
+    }
+
+    /** Score of the i-th best candidate, once sorted */
+    double score(int i) {
+        return scores[heap[i]];
+    }
+
+    /** Ordinal of the i-th best candidate, once sorted */
+    long ord(int i) {
+        return ords[heap[i]];
+    }
+
+    /** Slot of the i-th best candidate, once sorted */
+    int slot(int i) {
+        return heap[i];
+    }
+
+    /** Drops all the candidates to start another selection */
+    void clear() {
+        size = 0;
+    }
+
+    // Indica si (score1, ord1) va detrás de (score2, ord2) en el resultado
+    private boolean worse(double score1, long ord1, double score2, long ord2) {
+        if (score1 != score2)
+            return highestFirst ? score1 < score2 : score1 > score2;
+        return ord1 > ord2;
+    }
+
+    private boolean worse(int i, int j) {
+        return worse(scores[heap[i]], ords[heap[i]], scores[heap[j]], ords[heap[j]]);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(i, parent))
+                break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int size) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && worse(child + 1, child))
+                child++;
+            if (!worse(child, i))
+                break;
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int slot = heap[i];
+        heap[i] = heap[j];
+        heap[j] = slot;
+    }
+}
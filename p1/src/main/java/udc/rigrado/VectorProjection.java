@@ -0,0 +1,69 @@
+package udc.rigrado;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+import java.util.Arrays;
+
+/**
+ * Signed feature hashing of sparse term vectors into a fixed number of dimensions. Each term of the
+ * vocabulary goes to the dimension given by the hash of its bytes, with a sign from another bit of the
+ * hash so that collisions cancel out on average and the dot products are kept in expectation. The
+ * hash only depends on the term, so the projection of a document does not change when the vocabulary
+ * around it does.
+ */
+class VectorProjection {
+
+    static final int DEFAULT_SEED = 0x9747b28c;
+
+    final int dimensions;
+    final int seed;
+    // Huella del vocabulario proyectado, que cambia con los términos que deja fuera -minDf/-maxDf
+    final int vocabularySize;
+    final int vocabularyHash;
+    // Dimensión de cada ordinal del vocabulario, en negativo (~dim) si su signo es -1
+    private final int[] slots;
+
+    VectorProjection(TermVocabulary vocabulary, int dimensions, int seed) {
+        this.dimensions = dimensions;
+        this.seed = seed;
+        this.slots = new int[vocabulary.size()];
+        this.vocabularySize = slots.length;
+        BytesRef scratch = new BytesRef();
+        int vocabularyHash = 1;
+        for (int ord = 0; ord < slots.length; ord++) {
+            int hash = StringHelper.murmurhash3_x86_32(vocabulary.term(ord, scratch), seed);
+            int slot = (hash >>> 1) % dimensions;
+            slots[ord] = (hash & 1) == 0 ? slot : ~slot;
+            vocabularyHash = 31 * vocabularyHash + hash;
+        }
+        this.vocabularyHash = vocabularyHash;
+    }
+
+    /** Projects the vector into out, which must have {@link #dimensions} entries */
+    float[] project(SparseVector vector, float[] out) {
+        Arrays.fill(out, 0);
+        for (int j = 0; j < vector.ords.length; j++) {
+            int slot = slots[vector.ords[j]];
+            if (slot >= 0)
+                out[slot] += vector.values[j];
+            else
+                out[~slot] -= vector.values[j];
+        }
+        return out;
+    }
+
+    /** Cosine similarity, or NaN if one of the vectors has no weight */
+    static double cosine(float[] a, float[] b) {
+        double dotProd = 0;
+        double normA = 0;
+        double normB = 0;
+        for (int d = 0; d < a.length; d++) {
+            dotProd += (double) a[d] * b[d];
+            normA += (double) a[d] * a[d];
+            normB += (double) b[d] * b[d];
+        }
+        double denom = Math.sqrt(normA) * Math.sqrt(normB);
+        return denom == 0 ? Double.NaN : dotProd / denom;
+    }
+}
@@ -1,107 +1,438 @@
 package udc.rigrado;
 
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexableField;
-import org.apache.lucene.search.CollectionStatistics;
-import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.StoredFieldVisitor;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.IOUtils;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
 
 public class WriteIndex implements AutoCloseable {
 
+    private enum Format {
+        TEXT(),
+        JSONL(),
+        BINARY()
+    }
+
+    /**
+     * The binary format is big endian: the magic, the version, and then for every live document its
+     * docID, its number of stored values and, for each of them, the field name (as in
+     * {@link DataOutputStream#writeUTF}), a type byte and the value. Strings and binary values are
+     * written as their length and bytes (UTF-8 for strings), and numbers as themselves.
+     */
+    static final int MAGIC = 0x53544F44;
+    static final int VERSION = 1;
+    static final byte STRING = 0;
+    static final byte BINARY = 1;
+    static final byte INT = 2;
+    static final byte LONG = 3;
+    static final byte FLOAT = 4;
+    static final byte DOUBLE = 5;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    // Rangos de documentos por hilo, para repartir mejor los segmentos de distinto tamaño
+    private static final int RANGES_PER_THREAD = 8;
+    private static final int MIN_RANGE_DOCS = 1024;
+    // Rangos por hilo empezados y aún no añadidos a la salida
+    private static final int RANGES_IN_FLIGHT = 2;
+
     public static void main(String[] args) throws Exception{
         String usage = "java WriteIndex"
-                + " [-index INDEX_PATH] [-outputfile FILE_PATH]\n\n";
+                + " [-index INDEX_PATH] [-outputfile FILE_PATH] [-format text | jsonl | binary] [-threads T]\n\n"
+                + "Writes the stored fields of the live documents of the index to FILE_PATH. The documents are read\n"
+                + "by -threads threads, each one over ranges of documents of a segment, and written in docID order.\n"
+                + "At most 2 ranges per thread wait in temporary part files next to FILE_PATH before being appended.\n"
+                + "jsonl writes a JSON object per line, and binary the compact format described in WriteIndex.\n";
         String indexPath = null;
         String outputfile = null;
+        Format format = Format.TEXT;
+        int threads = Runtime.getRuntime().availableProcessors();
 
-        for (int i = 0; i < args.length; i++) {
-            switch (args[i]) {
-                case "-index":
-                    indexPath = args[++i];
-                    break;
-                case "-outputfile":
-                    outputfile = args[++i];
-                    break;
-                default:
-                    throw new IllegalArgumentException("Unknown parameter " + args[i]);
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-index":
+                        indexPath = args[++i];
+                        break;
+                    case "-outputfile":
+                        outputfile = args[++i];
+                        break;
+                    case "-format":
+                        format = Format.valueOf(args[++i].toUpperCase());
+                        break;
+                    case "-threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown parameter " + args[i]);
+                }
             }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Usage: " + usage);
+            e.printStackTrace();
+            System.exit(1);
         }
 
-        if(indexPath == null || outputfile == null){
+        if(indexPath == null || outputfile == null || threads <= 0){
             System.err.println("Usage: " + usage);
             System.exit(1);
         }
 
         try ( WriteIndex writeIndex = new WriteIndex() ){
-            writeIndex.write(indexPath, outputfile);
+            writeIndex.write(indexPath, Paths.get(outputfile), format, threads);
         }
     }
 
+    /**
+     * Stored values of the document being read, kept in arrays that are reused from one document to
+     * the next. Numbers are kept boxed and binary values as their byte arrays.
+     */
+    private static class StoredDoc extends StoredFieldVisitor {
+        String[] names = new String[16];
+        Object[] values = new Object[16];
+        int size;
 
+        void reset() {
+            size = 0;
+        }
 
-    private void write(String indexPath, String outputfile) throws Exception{
-        Directory dir = null;
-        DirectoryReader indexReader = null;
-        Document doc = null;
-        List<IndexableField> fields = null;
+        private void add(FieldInfo fieldInfo, Object value) {
+            if (size == names.length) {
+                names = ArrayUtil.grow(names, size + 1);
+                values = ArrayUtil.growExact(values, names.length);
+            }
+            names[size] = fieldInfo.name;
+            values[size++] = value;
+        }
 
-        if (indexPath == null) {
-            System.err.println("No index path was given, the program can't continue");
-            System.exit(1);
+        @Override
+        public Status needsField(FieldInfo fieldInfo) {
+            return Status.YES;
         }
 
-        try {
-            dir = FSDirectory.open(Paths.get(indexPath));
-            indexReader = DirectoryReader.open(dir);
-        } catch (IOException e1) {
-            System.out.println("Graceful message: exception " + e1);
-            e1.printStackTrace();
+        @Override
+        public void binaryField(FieldInfo fieldInfo, byte[] value) {
+            add(fieldInfo, value);
         }
 
-        if(indexReader != null){
+        @Override
+        public void stringField(FieldInfo fieldInfo, String value) {
+            add(fieldInfo, value);
+        }
 
-            try {
-                FileWriter myWriter = new FileWriter(outputfile);
-                for (int i = 0; i < indexReader.numDocs(); i++) {
-                    try {
-                        doc = indexReader.document(i);
-                    } catch (IOException e1) {
-                        System.out.println("Graceful message: exception " + e1);
-                        e1.printStackTrace();
-                    }
-                    if(doc != null){
-                        myWriter.append("\nDocument " + i + "\n");
-                        fields = doc.getFields();
-                        for (IndexableField field : fields) {
-                            String fieldName = field.name();
-                            if(fieldName.compareTo("contentsStored") == 0){
-                              myWriter.append( fieldName + ": \n" + doc.get(fieldName)  +"\n" );
-                            }else{
-                                myWriter.append( fieldName + ": " + doc.get(fieldName) + "\n\n");
-                            }
-                        }
-                    }
+        @Override
+        public void intField(FieldInfo fieldInfo, int value) {
+            add(fieldInfo, value);
+        }
+
+        @Override
+        public void longField(FieldInfo fieldInfo, long value) {
+            add(fieldInfo, value);
+        }
+
+        @Override
+        public void floatField(FieldInfo fieldInfo, float value) {
+            add(fieldInfo, value);
+        }
+
+        @Override
+        public void doubleField(FieldInfo fieldInfo, double value) {
+            add(fieldInfo, value);
+        }
+
+        // Como Document.get: el primer valor del campo que no sea binario
+        private String firstValue(String name) {
+            for (int i = 0; i < size; i++)
+                if (names[i].equals(name) && !(values[i] instanceof byte[]))
+                    return values[i].toString();
+            return null;
+        }
+
+        private boolean seenBefore(int i) {
+            for (int j = 0; j < i; j++)
+                if (names[j].equals(names[i]))
+                    return true;
+            return false;
+        }
+
+        void writeText(int docID, Writer out) throws IOException {
+            out.write("\nDocument ");
+            out.write(Integer.toString(docID));
+            out.write('\n');
+            for (int i = 0; i < size; i++) {
+                String fieldName = names[i];
+                out.write(fieldName);
+                if (fieldName.equals("contentsStored")) {
+                    out.write(": \n");
+                    out.write(String.valueOf(firstValue(fieldName)));
+                    out.write('\n');
+                } else {
+                    out.write(": ");
+                    out.write(String.valueOf(firstValue(fieldName)));
+                    out.write("\n\n");
                 }
-                myWriter.close();
-                System.out.println("Document created succesfully in path " + outputfile + "\n");
+            }
+        }
 
+        void writeJson(int docID, Writer out) throws IOException {
+            out.write("{\"docID\":");
+            out.write(Integer.toString(docID));
+            out.write(",\"fields\":{");
+            boolean first = true;
+            // Los campos con varios valores se escriben como un array, en el orden en que aparecen
+            for (int i = 0; i < size; i++) {
+                if (seenBefore(i))
+                    continue;
+                int count = 0;
+                for (int j = i; j < size; j++)
+                    if (names[j].equals(names[i]))
+                        count++;
+                if (!first)
+                    out.write(',');
+                first = false;
+                writeJsonString(names[i], out);
+                out.write(':');
+                if (count == 1) {
+                    writeJsonValue(values[i], out);
+                    continue;
+                }
+                out.write('[');
+                for (int j = i, written = 0; j < size; j++) {
+                    if (!names[j].equals(names[i]))
+                        continue;
+                    if (written++ > 0)
+                        out.write(',');
+                    writeJsonValue(values[j], out);
+                }
+                out.write(']');
+            }
+            out.write("}}\n");
+        }
+
+        void writeBinary(int docID, DataOutputStream out) throws IOException {
+            out.writeInt(docID);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeUTF(names[i]);
+                Object value = values[i];
+                if (value instanceof String) {
+                    byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                    out.writeByte(STRING);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                } else if (value instanceof byte[]) {
+                    byte[] bytes = (byte[]) value;
+                    out.writeByte(BINARY);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                } else if (value instanceof Integer) {
+                    out.writeByte(INT);
+                    out.writeInt((Integer) value);
+                } else if (value instanceof Long) {
+                    out.writeByte(LONG);
+                    out.writeLong((Long) value);
+                } else if (value instanceof Float) {
+                    out.writeByte(FLOAT);
+                    out.writeFloat((Float) value);
+                } else {
+                    out.writeByte(DOUBLE);
+                    out.writeDouble((Double) value);
+                }
+            }
+        }
+    }
+
+    private static void writeJsonValue(Object value, Writer out) throws IOException {
+        if (value instanceof String)
+            writeJsonString((String) value, out);
+        else if (value instanceof byte[])
+            writeJsonString(Base64.getEncoder().encodeToString((byte[]) value), out);
+        else if ((value instanceof Float && !Float.isFinite((Float) value))
+                || (value instanceof Double && !Double.isFinite((Double) value)))
+            // JSON no admite NaN ni infinitos como números
+            writeJsonString(value.toString(), out);
+        else
+            out.write(value.toString());
+    }
+
+    private static void writeJsonString(String value, Writer out) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+
+    /**
+     * Writes the live documents in [from, to) of a segment to a part file of the output, returning how
+     * many there were. Each thread reading stored fields gets its own copy of the segment's reader.
+     */
+    private static class DocRange extends RecursiveTask<Integer> {
+        private final LeafReaderContext leaf;
+        private final int from;
+        private final int to;
+        private final Format format;
+        final Path part;
+
+        DocRange(LeafReaderContext leaf, int from, int to, Format format, Path part) {
+            this.leaf = leaf;
+            this.from = from;
+            this.to = to;
+            this.format = format;
+            this.part = part;
+        }
+
+        @Override
+        protected Integer compute() {
+            try {
+                return export();
             } catch (IOException e) {
-                System.out.println("An error occurred.");
-                e.printStackTrace();
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private int export() throws IOException {
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            StoredDoc doc = new StoredDoc();
+            int exported = 0;
+            try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(part), BUFFER_SIZE)) {
+                Writer text = format == Format.BINARY ? null : new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+                DataOutputStream data = format == Format.BINARY ? new DataOutputStream(stream) : null;
+                for (int i = from; i < to; i++) {
+                    if (liveDocs != null && !liveDocs.get(i))
+                        continue;
+                    doc.reset();
+                    leaf.reader().document(i, doc);
+                    int docID = leaf.docBase + i;
+                    switch (format) {
+                        case TEXT:
+                            doc.writeText(docID, text);
+                            break;
+                        case JSONL:
+                            doc.writeJson(docID, text);
+                            break;
+                        case BINARY:
+                            doc.writeBinary(docID, data);
+                            break;
+                    }
+                    exported++;
+                }
+                if (text != null)
+                    text.flush();
+                if (data != null)
+                    data.flush();
             }
+            return exported;
+        }
+    }
+
+    private void write(String indexPath, Path outputfile, Format format, int threads) throws Exception{
+        long start = System.currentTimeMillis();
+        try (Directory dir = FSDirectory.open(Paths.get(indexPath));
+             DirectoryReader indexReader = DirectoryReader.open(dir)) {
 
+            // Rangos de cada segmento, del tamaño justo para que haya varios por hilo
+            int rangeDocs = Math.max(MIN_RANGE_DOCS, indexReader.maxDoc() / (threads * RANGES_PER_THREAD) + 1);
+            List<DocRange> ranges = new ArrayList<>();
+            for (LeafReaderContext leaf : indexReader.leaves())
+                for (int from = 0; from < leaf.reader().maxDoc(); from += rangeDocs)
+                    ranges.add(new DocRange(leaf, from, Math.min(from + rangeDocs, leaf.reader().maxDoc()), format,
+                            outputfile.resolveSibling(outputfile.getFileName() + ".part" + ranges.size())));
 
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            long exported = 0;
+            try (FileChannel out = FileChannel.open(outputfile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                if (format == Format.BINARY) {
+                    ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES).putInt(MAGIC).putInt(VERSION);
+                    header.flip();
+                    while (header.hasRemaining())
+                        out.write(header);
+                }
+                // Solo hay RANGES_IN_FLIGHT rangos por hilo en marcha, así no se escriben en disco todas las
+                // partes a la vez: cada una se añade y se borra en cuanto le toca, en orden de docID
+                int next = 0;
+                for (; next < Math.min(threads * RANGES_IN_FLIGHT, ranges.size()); next++)
+                    pool.execute(ranges.get(next));
+                for (DocRange range : ranges) {
+                    exported += range.join();
+                    if (next < ranges.size())
+                        pool.execute(ranges.get(next++));
+                    append(range.part, out);
+                    Files.delete(range.part);
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+                for (DocRange range : ranges)
+                    Files.deleteIfExists(range.part);
+            }
+            System.out.println("Exported " + exported + " documents in " + (System.currentTimeMillis() - start)
+                    + " milliseconds");
+            System.out.println("Document created succesfully in path " + outputfile + "\n");
+        } catch (IOException e) {
+            System.out.println("An error occurred.");
+            e.printStackTrace();
+            System.exit(1);
         }
+    }
 
+    private static void append(Path part, FileChannel out) throws IOException {
+        try (FileChannel in = FileChannel.open(part, StandardOpenOption.READ)) {
+            long size = in.size();
+            for (long position = 0; position < size; )
+                position += in.transferTo(position, size - position, out);
+        }
     }
 
     @Override
@@ -0,0 +1,100 @@
+package udc.rigrado;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Map;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.Test;
+
+public class CommitStatsTest
+{
+    private static Document doc(String path, String contents) {
+        Document doc = new Document();
+        doc.add(new StringField("path", path, Field.Store.YES));
+        doc.add(new TextField("contents", contents, Field.Store.NO));
+        return doc;
+    }
+
+    @Test
+    public void statsOfTheCommitAreRead() throws Exception
+    {
+        try (Directory dir = new ByteBuffersDirectory();
+             IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+            writer.addDocument(doc("a", "one two"));
+            writer.addDocument(doc("b", "three"));
+            CommitStats.commit(writer);
+
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                Map<String, CollectionStatistics> stats = CommitStats.read(reader);
+                assertNotNull(stats);
+                assertEquals(2, stats.get("contents").docCount());
+                assertEquals(3, stats.get("contents").sumTotalTermFreq());
+            }
+        }
+    }
+
+    @Test
+    public void statsOfOtherSegmentsWithTheSameCountsAreNotRead() throws Exception
+    {
+        try (Directory dir = new ByteBuffersDirectory();
+             IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+            writer.addDocument(doc("a", "one two"));
+            writer.addDocument(doc("b", "three"));
+            CommitStats.commit(writer);
+
+            // Mismos maxDoc y numDocs con otro contenido, y el commit conserva las estadísticas anteriores
+            writer.deleteDocuments(new Term("path", "a"));
+            writer.addDocument(doc("c", "four five six seven"));
+            writer.forceMerge(1);
+            writer.commit();
+
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                assertEquals(2, reader.maxDoc());
+                assertEquals(2, reader.numDocs());
+                assertNull(CommitStats.read(reader));
+            }
+        }
+    }
+
+    @Test
+    public void statsSurviveMergesBeforeClose() throws Exception
+    {
+        try (Directory dir = new ByteBuffersDirectory()) {
+            LogDocMergePolicy mergePolicy = new LogDocMergePolicy();
+            mergePolicy.setMergeFactor(2);
+            mergePolicy.setMinMergeDocs(1);
+            IndexWriterConfig iwc = new IndexWriterConfig(new StandardAnalyzer()).setMergePolicy(mergePolicy)
+                    .setMaxBufferedDocs(2);
+            try (IndexWriter writer = new IndexWriter(dir, iwc)) {
+                for (int i = 0; i < 40; i++)
+                    writer.addDocument(doc("doc" + i, "word" + (i % 7) + " common"));
+                // Como en el perfil bulk-load: las fusiones siguen al cerrar el writer
+                writer.maybeMerge();
+            }
+            CommitStats.store(dir);
+
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                Map<String, CollectionStatistics> stats = CommitStats.read(reader);
+                assertNotNull(stats);
+                assertEquals(40, stats.get("contents").docCount());
+                assertEquals(80, stats.get("contents").sumTotalTermFreq());
+                assertEquals(40, stats.get("path").docCount());
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package udc.rigrado;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileManifestTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Path DOCS = Paths.get("docs");
+
+    private FileManifest load(String... paths) throws Exception {
+        BasicFileAttributes attr = Files.readAttributes(folder.newFile().toPath(), BasicFileAttributes.class);
+        try (Directory dir = new ByteBuffersDirectory();
+             IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig())) {
+            for (String path : paths) {
+                Document doc = new Document();
+                new FileManifest.Fields().addTo(doc, path, attr, new byte[16]);
+                writer.addDocument(doc);
+            }
+            return FileManifest.load(writer);
+        }
+    }
+
+    private static List<String> sorted(List<String> paths) {
+        Collections.sort(paths);
+        return paths;
+    }
+
+    @Test
+    public void siblingTreesWithTheSamePrefixAreNotMissing() throws Exception
+    {
+        FileManifest manifest = load(Paths.get("docs", "a", "x.txt").toString(),
+                Paths.get("docs2", "a", "y.txt").toString());
+        manifest.crawled(DOCS);
+        manifest.seen(DOCS.resolve("a"));
+        manifest.crawled(DOCS.resolve("a"));
+
+        assertEquals(Collections.singletonList(Paths.get("docs", "a", "x.txt").toString()), manifest.missing(DOCS));
+    }
+
+    @Test
+    public void takenFilesAreNotMissing() throws Exception
+    {
+        FileManifest manifest = load(Paths.get("docs", "a", "x.txt").toString());
+        manifest.crawled(DOCS);
+        manifest.seen(DOCS.resolve("a"));
+        manifest.crawled(DOCS.resolve("a"));
+
+        assertNotNull(manifest.take(Paths.get("docs", "a", "x.txt").toString()));
+        assertEquals(Collections.emptyList(), manifest.missing(DOCS));
+    }
+
+    @Test
+    public void filesOfDeletedDirectoriesAreMissing() throws Exception
+    {
+        FileManifest manifest = load(Paths.get("docs", "gone", "x.txt").toString(),
+                Paths.get("docs", "gone", "deeper", "y.txt").toString());
+        manifest.crawled(DOCS);
+
+        assertEquals(Arrays.asList(Paths.get("docs", "gone", "deeper", "y.txt").toString(),
+                Paths.get("docs", "gone", "x.txt").toString()), sorted(manifest.missing(DOCS)));
+    }
+
+    @Test
+    public void directoriesNotCrawledKeepTheirFiles() throws Exception
+    {
+        // "deep" está por debajo del límite de profundidad y "locked" no se pudo listar
+        FileManifest manifest = load(Paths.get("docs", "deep", "x.txt").toString(),
+                Paths.get("docs", "deep", "sub", "y.txt").toString(),
+                Paths.get("docs", "locked", "z.txt").toString());
+        manifest.crawled(DOCS);
+        manifest.seen(DOCS.resolve("deep"));
+        manifest.seen(DOCS.resolve("locked"));
+
+        assertEquals(Collections.emptyList(), manifest.missing(DOCS));
+    }
+}
@@ -1,20 +1,203 @@
 package udc.rigrado;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Properties;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.index.VectorValues;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
-/**
- * Unit test for simple App.
- */
 public class IndexFilesTest
 {
-    /**
-     * Rigorous Test :-)
-     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private IndexFiles.IndexInfo info(Properties prop) throws Exception {
+        return new IndexFiles.IndexInfo(1, false, null, false, null, null, prop);
+    }
+
+    private Document build(Path file, IndexFiles.IndexInfo info) throws Exception {
+        return IndexFiles.buildDocument(IndexFiles.FileData.read(null, file, info), info,
+                new IndexFiles.DocFields("localhost"));
+    }
+
+    @Test
+    public void largeFilesAreStoredTruncatedButIndexedWhole() throws Exception
+    {
+        Path file = folder.newFile("large.txt").toPath();
+        StringBuilder text = new StringBuilder("beginning ");
+        for (int i = 0; i < 200; i++)
+            text.append("filler ");
+        text.append("needle");
+        Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+
+        Properties prop = new Properties();
+        prop.setProperty("maxStoredBytes", "100");
+        IndexFiles.IndexInfo info = info(prop);
+        Document doc = build(file, info);
+
+        String stored = doc.get("contentsStored");
+        assertEquals(100, stored.length());
+        assertFalse(stored.contains("needle"));
+
+        try (Directory dir = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+                writer.addDocument(doc);
+            }
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                assertEquals(1, searcher.count(new TermQuery(new Term("contents", "needle"))));
+                assertEquals(1, searcher.count(new TermQuery(new Term("contents", "beginning"))));
+            }
+        }
+    }
+
+    @Test
+    public void smallFilesAreStoredAndIndexedTheSame() throws Exception
+    {
+        Path file = folder.newFile("small.txt").toPath();
+        Files.write(file, "just a few words".getBytes(StandardCharsets.UTF_8));
+
+        Document doc = build(file, info(new Properties()));
+        assertEquals("just a few words", doc.get("contentsStored"));
+        assertEquals("just a few words", doc.get("contents"));
+        assertTrue(doc.getField("contents").stringValue() != null);
+    }
+
     @Test
-    public void shouldAnswerWithTrue()
+    public void topAndBottomLinesSplitOnCharactersNotBytes() throws Exception
     {
-        assertTrue( true );
+        // En UTF-16LE '\u0a0d' se codifica con los mismos bytes que "\r\n"
+        String text = "one\u0a0d\r\ntwo\nthree\n";
+        for (Charset charset : new Charset[] {StandardCharsets.UTF_8, StandardCharsets.UTF_16,
+                StandardCharsets.UTF_16LE, Charset.forName("UTF-32")}) {
+            ByteBuffer bytes = ByteBuffer.wrap(text.getBytes(charset));
+            assertEquals(charset.name(), "one\u0a0d", IndexFiles.topLines(bytes, 1, charset));
+            assertEquals(charset.name(), "one\u0a0d\ntwo", IndexFiles.topLines(bytes, 2, charset));
+            assertEquals(charset.name(), "three", IndexFiles.bottomLines(bytes, 1, charset));
+            assertEquals(charset.name(), "two\nthree", IndexFiles.bottomLines(bytes, 2, charset));
+            assertEquals(charset.name(), "one\u0a0d\ntwo\nthree", IndexFiles.bottomLines(bytes, 5, charset));
+        }
+    }
+
+    private static int docsWithVector(DirectoryReader reader) throws Exception {
+        int count = 0;
+        for (LeafReaderContext leaf : reader.leaves()) {
+            VectorValues vectors = leaf.reader().getVectorValues(DocEmbeddings.FIELD);
+            if (vectors != null)
+                while (vectors.nextDoc() != VectorValues.NO_MORE_DOCS)
+                    count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void knnDictionaryIsReusedByLaterRuns() throws Exception
+    {
+        Path dict = folder.newFile("dict.txt").toPath();
+        Files.write(dict, ("cat 0.5 -0.5 0.5 -0.5\ndog -0.4 0.3 -0.2 0.1\nfox 0.1 0.2 0.3 0.4\n")
+                .getBytes(StandardCharsets.UTF_8));
+        // Solo se indexan los subdirectorios de -docs
+        Path docs = folder.newFolder("docs").toPath();
+        Path sub = Files.createDirectory(docs.resolve("sub"));
+        Files.write(sub.resolve("a.txt"), "the fox and the dog".getBytes(StandardCharsets.UTF_8));
+        Files.write(sub.resolve("b.txt"), "a lazy fox".getBytes(StandardCharsets.UTF_8));
+        Path index = folder.getRoot().toPath().resolve("index");
+
+        IndexFiles.main(new String[] {"-index", index.toString(), "-docs", docs.toString(), "-openmode", "create",
+                "-knnDict", dict.toString()});
+        // Un segundo recorrido del mismo índice añade los documentos otra vez con el mismo diccionario
+        IndexFiles.main(new String[] {"-index", index.toString(), "-docs", docs.toString(), "-openmode", "append",
+                "-knnDict", dict.toString()});
+        try (Directory dir = FSDirectory.open(index); DirectoryReader reader = DirectoryReader.open(dir)) {
+            assertEquals(4, reader.numDocs());
+            assertEquals(4, docsWithVector(reader));
+        }
+
+        // Con otro origen el diccionario se vuelve a construir
+        Path other = folder.newFile("other.txt").toPath();
+        Files.write(other, "cat 0 1\nfox 1 0\nzebra 1 1\n".getBytes(StandardCharsets.UTF_8));
+        IndexFiles.main(new String[] {"-index", index.toString(), "-docs", docs.toString(), "-openmode", "create",
+                "-knnDict", other.toString()});
+        try (Directory dir = FSDirectory.open(index); DirectoryReader reader = DirectoryReader.open(dir)) {
+            assertEquals(2, reader.numDocs());
+            assertEquals(2, docsWithVector(reader));
+            assertEquals(2, reader.leaves().get(0).reader().getFieldInfos()
+                    .fieldInfo(DocEmbeddings.FIELD).getVectorDimension());
+        }
+    }
+
+    private static int liveDocsWithHash(DirectoryReader reader) throws Exception {
+        int count = 0;
+        for (LeafReaderContext leaf : reader.leaves()) {
+            BinaryDocValues hashes = leaf.reader().getBinaryDocValues(FileManifest.HASH);
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            if (hashes != null)
+                for (int doc = hashes.nextDoc(); doc != BinaryDocValues.NO_MORE_DOCS; doc = hashes.nextDoc())
+                    if (liveDocs == null || liveDocs.get(doc))
+                        count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void contentIsOnlyHashedForIncrementalRuns() throws Exception
+    {
+        Path docs = folder.newFolder("docs").toPath();
+        Path sub = Files.createDirectory(docs.resolve("sub"));
+        Path a = Files.write(sub.resolve("a.txt"), "the fox and the dog".getBytes(StandardCharsets.UTF_8));
+        Path b = Files.write(sub.resolve("b.txt"), "a lazy fox".getBytes(StandardCharsets.UTF_8));
+        Path index = folder.getRoot().toPath().resolve("index");
+
+        IndexFiles.main(new String[] {"-index", index.toString(), "-docs", docs.toString(), "-openmode", "create"});
+        try (Directory dir = FSDirectory.open(index); DirectoryReader reader = DirectoryReader.open(dir)) {
+            assertEquals(2, reader.numDocs());
+            assertEquals(0, liveDocsWithHash(reader));
+        }
+
+        // Sin hash, solo cambiar la fecha basta para volver a indexar; el documento nuevo ya lo tiene
+        Files.setLastModifiedTime(b, FileTime.fromMillis(Files.getLastModifiedTime(b).toMillis() - 60000));
+        IndexFiles.main(new String[] {"-index", index.toString(), "-docs", docs.toString(), "-openmode", "append",
+                "-incremental"});
+        int maxDoc;
+        try (Directory dir = FSDirectory.open(index); DirectoryReader reader = DirectoryReader.open(dir)) {
+            assertEquals(2, reader.numDocs());
+            assertEquals(1, liveDocsWithHash(reader));
+            maxDoc = reader.maxDoc();
+        }
+
+        // Con hash, el mismo contenido con otra fecha solo actualiza el manifiesto
+        Files.setLastModifiedTime(b, FileTime.fromMillis(Files.getLastModifiedTime(b).toMillis() - 60000));
+        IndexFiles.main(new String[] {"-index", index.toString(), "-docs", docs.toString(), "-openmode", "append",
+                "-incremental"});
+        try (Directory dir = FSDirectory.open(index); DirectoryReader reader = DirectoryReader.open(dir)) {
+            assertEquals(2, reader.numDocs());
+            assertEquals(maxDoc, reader.maxDoc());
+            assertEquals(1, reader.docFreq(new Term("path", a.toString())));
+        }
     }
 }
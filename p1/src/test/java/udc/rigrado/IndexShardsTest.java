@@ -0,0 +1,118 @@
+package udc.rigrado;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IndexShardsTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void routingDoesNotChangeBetweenRuns() throws Exception
+    {
+        // Un cambio de hash o semilla mandaría las actualizaciones a otro shard que el del documento
+        assertEquals(0, IndexShards.shard("docs/a.txt", 4));
+        assertEquals(0, IndexShards.shard("docs/b.txt", 4));
+        assertEquals(2, IndexShards.shard("docs/sub/c.txt", 4));
+        assertEquals(3, IndexShards.shard("docs/a.txt", 7));
+        assertEquals(0, IndexShards.shard("docs/b.txt", 7));
+        assertEquals(3, IndexShards.shard("docs/sub/c.txt", 7));
+    }
+
+    @Test
+    public void pathsAreSpreadOverEveryShard() throws Exception
+    {
+        for (int numShards : new int[] {1, 3, 8}) {
+            int[] counts = new int[numShards];
+            for (int i = 0; i < 8000; i++) {
+                int shard = IndexShards.shard("docs/dir" + (i % 50) + "/file" + i + ".txt", numShards);
+                assertTrue(shard >= 0 && shard < numShards);
+                counts[shard]++;
+            }
+            int expected = 8000 / numShards;
+            for (int count : counts)
+                assertTrue(count > expected * 0.8 && count < expected * 1.2);
+        }
+    }
+
+    private void createShard(Path indexPath, int shard, String path) throws IOException {
+        try (Directory dir = FSDirectory.open(IndexShards.shardPath(indexPath, shard));
+             IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig())) {
+            Document doc = new Document();
+            doc.add(new StringField("path", path, Field.Store.YES));
+            writer.addDocument(doc);
+        }
+    }
+
+    @Test
+    public void shardsAreOpenedInOrder() throws Exception
+    {
+        Path indexPath = folder.newFolder("index").toPath();
+        assertEquals(0, IndexShards.count(indexPath));
+        for (int shard = 2; shard >= 0; shard--)
+            createShard(indexPath, shard, "doc" + shard);
+        // Lo que no es un shard se ignora
+        Files.createDirectory(indexPath.resolve("shard-x"));
+
+        assertEquals(3, IndexShards.count(indexPath));
+        DirectoryReader[] readers = IndexShards.open(indexPath);
+        try {
+            assertEquals(3, readers.length);
+            for (int shard = 0; shard < readers.length; shard++)
+                assertEquals("doc" + shard, readers[shard].document(0).get("path"));
+        } finally {
+            IOUtils.close(readers);
+        }
+    }
+
+    @Test
+    public void missingShardIsAnError() throws Exception
+    {
+        Path indexPath = folder.newFolder("index").toPath();
+        createShard(indexPath, 0, "doc0");
+        createShard(indexPath, 2, "doc2");
+        try {
+            IndexShards.count(indexPath);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Shard 1"));
+        }
+    }
+
+    @Test
+    public void otherNumberOfShardsIsAnError() throws Exception
+    {
+        Path indexPath = folder.newFolder("index").toPath();
+        createShard(indexPath, 0, "doc0");
+        createShard(indexPath, 1, "doc1");
+        Path docs = folder.newFolder("docs").toPath();
+        try (IndexFiles indexFiles = new IndexFiles(1, 1, 1, 1, 1, indexPath, null, false, null, null)) {
+            indexFiles.indexShards(3, IndexWriterConfig.OpenMode.CREATE_OR_APPEND, docs, Integer.MAX_VALUE,
+                    false, false);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("has 2 shards, not 3"));
+        }
+        // Los shards existentes no se han tocado
+        assertEquals(2, IndexShards.count(indexPath));
+    }
+}
@@ -0,0 +1,83 @@
+package udc.rigrado;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class KMeansTest
+{
+    private static double[][] points(int n, int dimensions, long seed) {
+        Random random = new Random(seed);
+        double[][] points = new double[n][dimensions];
+        for (double[] point : points)
+            for (int d = 0; d < dimensions; d++)
+                point[d] = random.nextGaussian();
+        return points;
+    }
+
+    private static KMeans.Result fit(KMeans kMeans, double[][] points, int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return kMeans.fit(points, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void centroidsAreTheMeanOfTheAssignmentsAfterTheLastIteration() throws Exception
+    {
+        double[][] points = points(500, 3, 1);
+        for (int maxIterations = 1; maxIterations <= 4; maxIterations++) {
+            KMeans.Result result = fit(new KMeans(5, maxIterations, 0, 42), points, 2);
+            assertEquals(maxIterations, result.iterations);
+
+            double[][] sums = new double[5][3];
+            int[] counts = new int[5];
+            double cost = 0;
+            for (int i = 0; i < points.length; i++) {
+                int c = result.assignments[i];
+                for (int d = 0; d < 3; d++)
+                    sums[c][d] += points[i][d];
+                counts[c]++;
+                cost += KMeans.distance(points[i], result.centroids[c]);
+            }
+            for (int c = 0; c < 5; c++)
+                for (int d = 0; d < 3; d++)
+                    assertEquals(sums[c][d] / counts[c], result.centroids[c][d], 1e-9);
+            assertEquals(cost, result.cost, 1e-9);
+        }
+    }
+
+    @Test
+    public void sameResultWithAnyNumberOfThreads() throws Exception
+    {
+        double[][] points = points(5000, 4, 2);
+        KMeans.Result single = fit(new KMeans(8, 50, 1e-6, 7), points, 1);
+        for (int threads : new int[] {2, 4}) {
+            KMeans.Result parallel = fit(new KMeans(8, 50, 1e-6, 7), points, threads);
+            assertArrayEquals(single.assignments, parallel.assignments);
+            for (int c = 0; c < single.centroids.length; c++)
+                assertArrayEquals(single.centroids[c], parallel.centroids[c], 0);
+            assertEquals(single.cost, parallel.cost, 0);
+            assertEquals(single.iterations, parallel.iterations);
+        }
+    }
+
+    @Test
+    public void separatedGroupsEndInTheirOwnCluster() throws Exception
+    {
+        double[][] points = points(300, 2, 3);
+        for (int i = 0; i < points.length; i++)
+            points[i][0] += 100 * (i % 3);
+
+        KMeans.Result result = fit(new KMeans(3, 100, 0, 5), points, 2);
+        for (int i = 3; i < points.length; i++)
+            assertEquals(result.assignments[i % 3], result.assignments[i]);
+        assertEquals(3, result.assignments[0] + result.assignments[1] + result.assignments[2]);
+    }
+}
@@ -0,0 +1,87 @@
+package udc.rigrado;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.Test;
+
+public class SimilarDocsTest
+{
+    private static final String[] TEXTS = {
+            "the quick brown fox jumps over the lazy dog",
+            "the lazy dog sleeps all day",
+            "a quick brown fox and a quick red fox",
+            "nothing in common here",
+            "dog and fox are friends, the dog is lazy",
+            "brown bears eat fish"
+    };
+
+    private static Directory index() throws Exception {
+        FieldType type = new FieldType(TextField.TYPE_STORED);
+        type.setStoreTermVectors(true);
+        Directory dir = new ByteBuffersDirectory();
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+            for (String text : TEXTS) {
+                Document doc = new Document();
+                doc.add(new Field("contents", text, type));
+                writer.addDocument(doc);
+            }
+        }
+        return dir;
+    }
+
+    @Test
+    public void moreLikeThisDoesNotBuildTheVocabulary() throws Exception
+    {
+        try (Directory dir = index(); DirectoryReader reader = DirectoryReader.open(dir)) {
+            for (SimilarDocs.RepEnum rep : new SimilarDocs.RepEnum[] {SimilarDocs.RepEnum.BIN,
+                    SimilarDocs.RepEnum.TF, SimilarDocs.RepEnum.TFXIDF}) {
+                List<SimilarDocs.DocInfo> similar = new SimilarDocs(null, 0)
+                        .moreLikeThis(reader, "contents", rep, 0, 0, TEXTS.length);
+                assertFalse(similar.isEmpty());
+                assertFalse(IdfTable.cached(reader));
+            }
+        }
+    }
+
+    @Test
+    public void moreLikeThisWithAllTermsScoresLikeComparingAll() throws Exception
+    {
+        try (Directory dir = index(); DirectoryReader reader = DirectoryReader.open(dir)) {
+            for (SimilarDocs.RepEnum rep : new SimilarDocs.RepEnum[] {SimilarDocs.RepEnum.BIN,
+                    SimilarDocs.RepEnum.TF, SimilarDocs.RepEnum.TFXIDF}) {
+                List<SimilarDocs.DocInfo> similar = new SimilarDocs(null, 0)
+                        .moreLikeThis(reader, "contents", rep, 0, 0, TEXTS.length);
+
+                Map<Integer, Double> all = new HashMap<>();
+                for (SimilarDocs.DocInfo doc : new SimilarDocs(IdfTable.get(reader, "contents"), 0)
+                        .compareAll(reader, "contents", rep, TEXTS.length))
+                    all.put(doc.docID, doc.similarity);
+                assertTrue(IdfTable.cached(reader));
+
+                // Los que no comparten términos con el documento 0 no son candidatos
+                assertFalse(similar.stream().anyMatch(doc -> doc.docID == 3));
+                for (SimilarDocs.DocInfo doc : similar) {
+                    assertNotNull(all.get(doc.docID));
+                    assertEquals(rep.name(), all.get(doc.docID), doc.similarity, 1e-5);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package udc.rigrado;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SphericalKMeansTest
+{
+    private static final int TERMS = 30;
+
+    // Documentos de tres temas con términos disjuntos (0-9, 10-19 y 20-29), el tema es docID % 3
+    private static SparseVector[] docs(int n, long seed) {
+        Random random = new Random(seed);
+        SparseVector[] docs = new SparseVector[n];
+        for (int doc = 0; doc < n; doc++) {
+            int[] ords = new int[10];
+            float[] values = new float[10];
+            int size = 0;
+            for (int t = 0; t < 10; t++) {
+                if (random.nextBoolean()) {
+                    ords[size] = 10 * (doc % 3) + t;
+                    values[size++] = 1 + random.nextInt(5);
+                }
+            }
+            if (size == 0) {
+                ords[size] = 10 * (doc % 3);
+                values[size++] = 1;
+            }
+            docs[doc] = new SparseVector(ords, values, size).normalized();
+        }
+        return docs;
+    }
+
+    private static int[] docIDs(int n) {
+        int[] docIDs = new int[n];
+        for (int i = 0; i < n; i++)
+            docIDs[i] = i;
+        return docIDs;
+    }
+
+    private static int[] assign(SphericalKMeans kMeans, int[] docIDs, SparseVector.Source source) throws Exception {
+        int[] clusters = new int[docIDs.length];
+        Arrays.fill(clusters, -1);
+        kMeans.assign(docIDs, source, (doc, cluster, similarity) -> clusters[doc] = cluster);
+        return clusters;
+    }
+
+    @Test
+    public void sameSeedGivesTheSameClusters() throws Exception
+    {
+        SparseVector[] docs = docs(600, 1);
+        SparseVector.Source source = doc -> docs[doc];
+        int[] docIDs = docIDs(docs.length);
+
+        SphericalKMeans first = new SphericalKMeans(3, TERMS, 50, 20, 0, 7);
+        SphericalKMeans second = new SphericalKMeans(3, TERMS, 50, 20, 0, 7);
+        assertTrue(first.fit(docIDs, source));
+        assertTrue(second.fit(docIDs, source));
+        assertEquals(first.iterations, second.iterations);
+        for (int c = 0; c < 3; c++)
+            assertArrayEquals(first.centroids[c], second.centroids[c], 0);
+        assertArrayEquals(assign(first, docIDs, source), assign(second, docIDs, source));
+    }
+
+    @Test
+    public void documentsOfTheSameTopicEndInTheSameCluster() throws Exception
+    {
+        SparseVector[] docs = docs(600, 2);
+        SparseVector.Source source = doc -> docs[doc];
+        int[] docIDs = docIDs(docs.length);
+
+        SphericalKMeans kMeans = new SphericalKMeans(3, TERMS, 100, 50, 1e-6, 3);
+        assertTrue(kMeans.fit(docIDs, source));
+        int[] clusters = assign(kMeans, docIDs, source);
+        for (int doc = 3; doc < clusters.length; doc++)
+            assertEquals(clusters[doc % 3], clusters[doc]);
+        assertEquals(3, clusters[0] + clusters[1] + clusters[2]);
+    }
+
+    @Test
+    public void documentsWithoutTermsAreLeftOut() throws Exception
+    {
+        SparseVector empty = new SparseVector(new int[0], new float[0], 0);
+        SparseVector[] docs = docs(6, 3);
+        docs[4] = empty;
+        SparseVector.Source source = doc -> docs[doc];
+
+        SphericalKMeans kMeans = new SphericalKMeans(2, TERMS, 10, 5, 0, 1);
+        assertTrue(kMeans.fit(docIDs(docs.length), source));
+        assertEquals(-1, assign(kMeans, docIDs(docs.length), source)[4]);
+
+        // Con menos documentos con términos que clusters no se puede empezar
+        assertFalse(new SphericalKMeans(3, TERMS, 10, 5, 0, 1).fit(new int[] {0, 4}, source));
+    }
+}
@@ -0,0 +1,117 @@
+package udc.rigrado;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TopKTest
+{
+    // Resultado esperado ordenando todos los candidatos: por puntuación y a igualdad por ordinal
+    private static List<Integer> expected(double[] scores, int k, boolean highestFirst) {
+        List<Integer> ords = new ArrayList<>();
+        for (int i = 0; i < scores.length; i++)
+            ords.add(i);
+        Comparator<Integer> byScore = Comparator.comparingDouble(i -> scores[i]);
+        ords.sort((highestFirst ? byScore.reversed() : byScore).thenComparingInt(i -> i));
+        return ords.subList(0, Math.min(k, ords.size()));
+    }
+
+    @Test
+    public void selectsTheSameAsSortingEverything() throws Exception
+    {
+        Random random = new Random(1);
+        for (int round = 0; round < 50; round++) {
+            // Pocas puntuaciones distintas para que haya muchos empates
+            double[] scores = new double[random.nextInt(300)];
+            for (int i = 0; i < scores.length; i++)
+                scores[i] = random.nextInt(20);
+            // Se ofrecen en orden aleatorio: el resultado no debe depender del orden
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < scores.length; i++)
+                order.add(i);
+            Collections.shuffle(order, random);
+
+            for (boolean highestFirst : new boolean[] {true, false}) {
+                int k = 1 + random.nextInt(40);
+                TopK top = new TopK(k, highestFirst);
+                for (int ord : order)
+                    top.offer(scores[ord], ord);
+                top.sort();
+
+                List<Integer> expected = expected(scores, k, highestFirst);
+                assertEquals(expected.size(), top.size());
+                for (int i = 0; i < top.size(); i++) {
+                    assertEquals((long) expected.get(i), top.ord(i));
+                    assertEquals(scores[expected.get(i)], top.score(i), 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void slotsFollowTheirCandidates() throws Exception
+    {
+        Random random = new Random(2);
+        int k = 8;
+        TopK top = new TopK(k, true);
+        long[] bySlot = new long[k];
+        for (long ord = 0; ord < 1000; ord++) {
+            int slot = top.offer(random.nextInt(100), ord);
+            assertTrue(slot < k);
+            if (slot >= 0)
+                bySlot[slot] = ord;
+        }
+        top.sort();
+        for (int i = 0; i < top.size(); i++)
+            assertEquals(top.ord(i), bySlot[top.slot(i)]);
+    }
+
+    @Test
+    public void competitiveTellsWhetherOfferSelects() throws Exception
+    {
+        Random random = new Random(3);
+        TopK top = new TopK(5, false);
+        for (long ord = 0; ord < 500; ord++) {
+            double score = random.nextInt(50);
+            boolean competitive = top.competitive(score, ord);
+            assertEquals(competitive, top.offer(score, ord) >= 0);
+        }
+    }
+
+    @Test
+    public void clearStartsAnotherSelection() throws Exception
+    {
+        TopK top = new TopK(2, true);
+        top.offer(10, 0);
+        top.offer(20, 1);
+        top.offer(30, 2);
+        top.sort();
+        assertEquals(2, top.ord(0));
+        assertEquals(1, top.ord(1));
+
+        top.clear();
+        assertEquals(0, top.size());
+        top.offer(1, 5);
+        top.offer(3, 6);
+        top.offer(2, 7);
+        top.sort();
+        assertEquals(2, top.size());
+        assertEquals(6, top.ord(0));
+        assertEquals(7, top.ord(1));
+    }
+
+    @Test
+    public void nothingIsSelectedWithZeroCandidates() throws Exception
+    {
+        TopK top = new TopK(0, true);
+        assertEquals(-1, top.offer(1, 0));
+        assertEquals(0, top.sort().size());
+    }
+}
@@ -39,14 +39,19 @@ public class IndexMedline implements AutoCloseable{
 
     public static void main(String[] args) {
         String usage = "java IndexMedline"
-                + " [-index INDEX_PATH] [-docs DOCS_PATH] [-openmode append | create | create_or_append] [-indexingmodel jm lambda | tfidf]\n\n"
-                + "This indexes the documents in DOCS_PATH, creating a Lucene index\n";
+                + " [-index INDEX_PATH] [-docs DOCS_PATH] [-openmode append | create | create_or_append] [-indexingmodel jm lambda | tfidf]\n"
+                + " [-profile default | bulk-load | serving]\n\n"
+                + "This indexes the documents in DOCS_PATH, creating a Lucene index\n"
+                + "-profile sets the RAM buffer, merging and codec of the writer; bulk-load defers all merges until\n"
+                + "the documents have been indexed.\n";
         String indexPath = "index";
         String docsPath = null;
         Modes openmode = Modes.CREATE;
         String mode = null;
         String indexingmodel = null;
         float lambda = 0;
+        String profile = "default";
+        IndexTuning tuning = null;
         Similarity similarity;
 
         for (int i = 0; i < args.length; i++) {
@@ -66,6 +71,9 @@ public class IndexMedline implements AutoCloseable{
                 case "-openmode":
                     mode = args[++i];
                     break;
+                case "-profile":
+                    profile = args[++i];
+                    break;
                 default:
                     throw new IllegalArgumentException("Unknown parameter " + args[i]);
             }
@@ -89,6 +97,12 @@ public class IndexMedline implements AutoCloseable{
             }
         }
 
+        try { tuning = IndexTuning.load(profile); }
+        catch (IllegalArgumentException e) {
+            System.err.println("Profile must be default, bulk-load or serving");
+            System.exit(1);
+        }
+
         final Path docDir = Paths.get(docsPath);
         if (!Files.isReadable(docDir)) {
             System.out.println("Document directory '" + docDir.toAbsolutePath()
@@ -113,13 +127,14 @@ public class IndexMedline implements AutoCloseable{
 
             Directory dir = FSDirectory.open(Paths.get(indexPath));
             Analyzer analyzer = new StandardAnalyzer();
-            IndexWriterConfig iwc = new IndexWriterConfig(analyzer).setSimilarity(similarity);
+            IndexWriterConfig iwc = tuning.apply(new IndexWriterConfig(analyzer).setSimilarity(similarity));
 
             iwc.setOpenMode(openmode.openMode);
 
             try (IndexWriter writer = new IndexWriter(dir, iwc);
                  IndexMedline indexFiles = new IndexMedline()) {
                 indexFiles.indexDocs(writer, docDir);
+                tuning.finish(writer);
             } finally {
                 IOUtils.close();
             }
@@ -0,0 +1,118 @@
+package udc.rigrado;
+
+import org.apache.lucene.codecs.lucene90.Lucene90Codec;
+import org.apache.lucene.index.*;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Writer settings for a kind of indexing run. The profile gives the defaults for the RAM buffer, the
+ * merge policy and scheduler, compound files and stored fields compression, and any of them can be
+ * overridden with a system property of the same name (-DramBufferSizeMB=256):
+ * <ul>
+ *   <li>default: the values Lucene uses when none are set (16 MB RAM buffer, compound files, 10
+ *   segments per tier, BEST_SPEED), applied explicitly so that they can be overridden too.</li>
+ *   <li>bulk-load: large RAM buffer, no compound files and no merges until {@link #finish} is called.</li>
+ *   <li>serving: small, compound segments kept few.</li>
+ * </ul>
+ */
+class IndexTuning {
+
+    enum Profile {
+        DEFAULT, BULK_LOAD, SERVING;
+
+        static Profile parse(String name) {
+            return valueOf(name.toUpperCase().replace('-', '_'));
+        }
+    }
+
+    final Profile profile;
+    final double ramBufferSizeMB;
+    final boolean useCompoundFile;
+    final double segmentsPerTier;
+    final double maxMergedSegmentMB;
+    final double floorSegmentMB;
+    final int maxMergeCount;
+    final int maxMergeThreads;
+    final Lucene90Codec.Mode codecMode;
+    final boolean deferMerges;
+
+    static IndexTuning load(String name) {
+        return new IndexTuning(Profile.parse(name), System.getProperties());
+    }
+
+    private IndexTuning(Profile profile, Properties prop) {
+        double ramBufferSizeMB = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+        boolean useCompoundFile = true;
+        double segmentsPerTier = 10;
+        double floorSegmentMB = 2;
+
+        switch (profile) {
+            case BULK_LOAD:
+                // Se vacía a disco lo menos posible y los segmentos se fusionan una sola vez al final
+                ramBufferSizeMB = 512;
+                useCompoundFile = false;
+                break;
+            case SERVING:
+                // Segmentos pequeños y pocos
+                ramBufferSizeMB = 8;
+                segmentsPerTier = 5;
+                floorSegmentMB = 1;
+                break;
+            default:
+                break;
+        }
+
+        this.profile = profile;
+        this.ramBufferSizeMB = Double.parseDouble(prop.getProperty("ramBufferSizeMB", String.valueOf(ramBufferSizeMB)));
+        this.useCompoundFile = Boolean.parseBoolean(prop.getProperty("useCompoundFile", String.valueOf(useCompoundFile)));
+        this.segmentsPerTier = Double.parseDouble(prop.getProperty("segmentsPerTier", String.valueOf(segmentsPerTier)));
+        this.maxMergedSegmentMB = Double.parseDouble(prop.getProperty("maxMergedSegmentMB", "5120"));
+        this.floorSegmentMB = Double.parseDouble(prop.getProperty("floorSegmentMB", String.valueOf(floorSegmentMB)));
+        // -1 deja que Lucene elija según el número de núcleos y el tipo de disco
+        this.maxMergeCount = Integer.parseInt(prop.getProperty("maxMergeCount",
+                String.valueOf(ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS)));
+        this.maxMergeThreads = Integer.parseInt(prop.getProperty("maxMergeThreads",
+                String.valueOf(ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS)));
+        this.codecMode = Lucene90Codec.Mode.valueOf(prop.getProperty("codecMode", "BEST_SPEED").toUpperCase());
+        this.deferMerges = profile == Profile.BULK_LOAD;
+    }
+
+    IndexWriterConfig apply(IndexWriterConfig iwc) {
+        iwc.setRAMBufferSizeMB(ramBufferSizeMB);
+        iwc.setUseCompoundFile(useCompoundFile);
+        iwc.setMergePolicy(deferMerges ? NoMergePolicy.INSTANCE : mergePolicy());
+        ConcurrentMergeScheduler scheduler = new ConcurrentMergeScheduler();
+        scheduler.setMaxMergesAndThreads(maxMergeCount, maxMergeThreads);
+        iwc.setMergeScheduler(scheduler);
+        iwc.setCodec(new Lucene90Codec(codecMode));
+        return iwc;
+    }
+
+    private TieredMergePolicy mergePolicy() {
+        TieredMergePolicy policy = new TieredMergePolicy();
+        policy.setSegmentsPerTier(segmentsPerTier);
+        policy.setMaxMergedSegmentMB(maxMergedSegmentMB);
+        policy.setFloorSegmentMB(floorSegmentMB);
+        // Sin ficheros compuestos tampoco en los segmentos fusionados
+        if (!useCompoundFile)
+            policy.setNoCFSRatio(0.0);
+        return policy;
+    }
+
+    /** Turns merging back on after a bulk load and starts the merges the flushed segments need */
+    void finish(IndexWriter writer) throws IOException {
+        if (!deferMerges)
+            return;
+        writer.getConfig().setMergePolicy(mergePolicy());
+        writer.maybeMerge();
+    }
+
+    @Override
+    public String toString() {
+        return profile.name().toLowerCase().replace('_', '-') + " (RAM buffer " + ramBufferSizeMB + " MB, "
+                + (useCompoundFile ? "compound files, " : "no compound files, ")
+                + (deferMerges ? "merges deferred, " : segmentsPerTier + " segments per tier, ") + codecMode + ")";
+    }
+}